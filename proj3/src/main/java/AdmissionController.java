@@ -0,0 +1,123 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests to each endpoint run at once, so that a burst of heavy requests,
+ * e.g. rasters, cannot take every server thread and starve cheap ones, e.g. searches. A request
+ * beyond its endpoint's limit waits for a bounded time in a bounded queue; once the queue is
+ * full, or the wait is over, it is rejected, and MapServer answers 503 with Retry-After.
+ *
+ * Endpoints without a limit are always admitted. Waiting requests hold a server thread, so the
+ * server's thread pool should be larger than maxHeldThreads, the limits plus the queues of the
+ * heavy endpoints, leaving threads for the others.
+ */
+public class AdmissionController {
+    private final Map<String, Limit> limits = new LinkedHashMap<>();
+
+    /** The concurrency limit, queue and counters of one endpoint. */
+    private static class Limit {
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final long maxWaitMillis;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong waited = new AtomicLong();
+        private final AtomicLong rejectedQueueFull = new AtomicLong();
+        private final AtomicLong rejectedTimeout = new AtomicLong();
+
+        Limit(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.maxWaitMillis = maxWaitMillis;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+    }
+
+    /**
+     * Limits the given endpoint, replacing any previous limit. Not safe to call once requests
+     * are being admitted.
+     * @param endpoint The endpoint, e.g. "/raster".
+     * @param maxConcurrent The most requests to run at once.
+     * @param maxQueued The most requests waiting to run at once.
+     * @param maxWaitMillis The longest a request waits before it is rejected.
+     */
+    void limit(String endpoint, int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        limits.put(endpoint, new Limit(maxConcurrent, maxQueued, maxWaitMillis));
+    }
+
+    /**
+     * Waits until a request to endpoint may run, unless it has to be rejected. A request that
+     * was admitted must call release once it is done.
+     * @return Whether the request was admitted.
+     */
+    boolean acquire(String endpoint) throws InterruptedException {
+        Limit limit = limits.get(endpoint);
+        if (limit == null) {
+            return true;
+        }
+        if (limit.permits.tryAcquire()) {
+            limit.admitted.incrementAndGet();
+            return true;
+        }
+        if (limit.queued.incrementAndGet() > limit.maxQueued) {
+            limit.queued.decrementAndGet();
+            limit.rejectedQueueFull.incrementAndGet();
+            return false;
+        }
+        try {
+            if (!limit.permits.tryAcquire(limit.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                limit.rejectedTimeout.incrementAndGet();
+                return false;
+            }
+        } finally {
+            limit.queued.decrementAndGet();
+        }
+        limit.admitted.incrementAndGet();
+        limit.waited.incrementAndGet();
+        return true;
+    }
+
+    /** Lets the next request to endpoint run, after an admitted one is done. */
+    void release(String endpoint) {
+        Limit limit = limits.get(endpoint);
+        if (limit != null) {
+            limit.permits.release();
+        }
+    }
+
+    /**
+     * Returns the most server threads the limited endpoints' requests can hold at once, running
+     * or waiting.
+     */
+    int maxHeldThreads() {
+        int threads = 0;
+        for (Limit limit : limits.values()) {
+            threads += limit.maxConcurrent + limit.maxQueued;
+        }
+        return threads;
+    }
+
+    /** Returns the limits and counters of each limited endpoint, for reporting as JSON. */
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            Limit limit = entry.getValue();
+            Map<String, Object> endpoint = new LinkedHashMap<>();
+            endpoint.put("max_concurrent", limit.maxConcurrent);
+            endpoint.put("max_queued", limit.maxQueued);
+            endpoint.put("running", limit.maxConcurrent - limit.permits.availablePermits());
+            endpoint.put("queued", limit.queued.get());
+            endpoint.put("admitted", limit.admitted.get());
+            endpoint.put("waited", limit.waited.get());
+            endpoint.put("rejected_queue_full", limit.rejectedQueueFull.get());
+            endpoint.put("rejected_timeout", limit.rejectedTimeout.get());
+            stats.put(entry.getKey(), endpoint);
+        }
+        return stats;
+    }
+}
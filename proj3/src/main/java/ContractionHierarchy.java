@@ -0,0 +1,454 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction hierarchy over a GraphDB, for answering shortest path queries while settling
+ * only a few hundred vertices. Preprocessing contracts vertices one at a time in order of
+ * importance (edge difference, with lazy updates), adding a shortcut between two neighbors
+ * of the contracted vertex whenever a local witness search finds no path between them that
+ * is at least as short without it. Every vertex then keeps only its upward edges, to
+ * neighbors contracted after it.
+ *
+ * A query is a bidirectional Dijkstra search that only follows upward edges from both the
+ * source and the target; shortcuts on the resulting path are unpacked recursively through
+ * the vertex they bypass, so callers get the same vertex lists as from A*.
+ *
+ * Preprocessing is done offline by running main, which writes the hierarchy next to the OSM
+ * file so MapServer can load it at startup.
+ *
+ * @see <a href="https://doi.org/10.1287/trsc.1110.0401">Geisberger et al., Exact Routing in
+ * Large Road Networks Using Contraction Hierarchies</a>
+ */
+public class ContractionHierarchy {
+    /** Suffix appended to the OSM file path to get the hierarchy path. */
+    static final String EXTENSION = ".ch";
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int MAGIC = 0x424d4348;
+    private static final int VERSION = 1;
+    /** Witness searches give up (and keep the shortcut) after settling this many vertices. */
+    private static final int MAX_WITNESS_SETTLED = 500;
+    /** Estimating the importance of a vertex gets by with a cheaper search. */
+    private static final int MAX_SIMULATED_WITNESS_SETTLED = 50;
+
+    private final GraphDB g;
+    /** Contraction order of each vertex; upward edges always lead to a higher rank. */
+    private final int[] rank;
+    /** Upward edges of vertex v are upTargets[upOffsets[v]] to upTargets[upOffsets[v + 1] - 1],
+     * and upMiddles holds the bypassed vertex of each shortcut, or -1 for a road. */
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    private final int[] upMiddles;
+
+    private ContractionHierarchy(GraphDB g, int[] rank, int[] upOffsets, int[] upTargets,
+                                 double[] upWeights, int[] upMiddles) {
+        this.g = g;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+    }
+
+    /** Preprocesses the graph at OSM_DB_PATH and writes its hierarchy next to it. */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        GraphDB g = new GraphDB(dbPath);
+        long start = System.nanoTime();
+        ContractionHierarchy ch = build(g);
+        System.out.println(String.format("Contracted %d vertices in %.1f s, %d upward edges.",
+                g.size(), (System.nanoTime() - start) / 1e9, ch.upTargets.length));
+        ch.write(new File(dbPath + EXTENSION));
+    }
+
+    /** Returns the contraction hierarchy of g. Takes a few seconds on the Berkeley graph. */
+    static ContractionHierarchy build(GraphDB g) {
+        return new Contractor(g).contractAll();
+    }
+
+    /** Returns the number of upward edges, roads and shortcuts together. */
+    int numEdges() {
+        return upTargets.length;
+    }
+
+    /**
+     * Finds the shortest path from vertex index s to vertex index t.
+     * @param ws A freshly reset workspace; its reverse() workspace holds the backward search.
+     * @return The ids of the vertices on the shortest path, or just s if t is unreachable.
+     */
+    List<Long> shortestPath(SearchWorkspace ws, int s, int t) {
+        SearchWorkspace fw = ws;
+        SearchWorkspace bw = ws.reverse();
+        IndexedMinHeap forward = fw.fringe();
+        IndexedMinHeap backward = bw.fringe();
+        fw.set(s, 0.0, -1);
+        bw.set(t, 0.0, -1);
+        forward.add(s, 0.0);
+        backward.add(t, 0.0);
+        double best = Double.MAX_VALUE;
+        int meet = -1;
+
+        while (!forward.isEmpty() || !backward.isEmpty()) {
+            boolean isForward = backward.isEmpty() || (!forward.isEmpty()
+                    && forward.peekPriority() <= backward.peekPriority());
+            IndexedMinHeap fringe = isForward ? forward : backward;
+            SearchWorkspace mine = isForward ? fw : bw;
+            SearchWorkspace other = isForward ? bw : fw;
+            if (fringe.peekPriority() >= best) {
+                /* Nothing left on this side can lead to a shorter path. */
+                fringe.clear();
+                continue;
+            }
+            int v = fringe.poll();
+            mine.countSettled();
+            if (other.distFromS(v) != Double.MAX_VALUE
+                    && mine.distFromS(v) + other.distFromS(v) < best) {
+                best = mine.distFromS(v) + other.distFromS(v);
+                meet = v;
+            }
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e += 1) {
+                int w = upTargets[e];
+                double d = mine.distFromS(v) + upWeights[e];
+                if (d < mine.distFromS(w)) {
+                    mine.set(w, d, v);
+                    fringe.add(w, d);
+                }
+            }
+        }
+
+        LinkedList<Long> list = new LinkedList<>();
+        list.add(g.id(s));
+        if (meet == -1) {
+            return list;
+        }
+        List<Integer> hops = new ArrayList<>();
+        for (int v = meet; v != -1; v = fw.prev(v)) {
+            hops.add(0, v);
+        }
+        for (int v = bw.prev(meet); v != -1; v = bw.prev(v)) {
+            hops.add(v);
+        }
+        for (int i = 1; i < hops.size(); i += 1) {
+            unpack(hops.get(i - 1), hops.get(i), list);
+        }
+        return list;
+    }
+
+    /** Appends the original vertices on the edge from a to b to list, excluding a. */
+    private void unpack(int a, int b, List<Long> list) {
+        int lower = rank[a] < rank[b] ? a : b;
+        int higher = lower == a ? b : a;
+        int middle = -1;
+        for (int e = upOffsets[lower]; e < upOffsets[lower + 1]; e += 1) {
+            if (upTargets[e] == higher) {
+                middle = upMiddles[e];
+                break;
+            }
+        }
+        if (middle == -1) {
+            list.add(g.id(b));
+        } else {
+            unpack(a, middle, list);
+            unpack(middle, b, list);
+        }
+    }
+
+    /** Writes the hierarchy to a file, tagged with a fingerprint of its graph. */
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint(g));
+            out.writeInt(rank.length);
+            out.writeInt(upTargets.length);
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : upOffsets) {
+                out.writeInt(offset);
+            }
+            for (int e = 0; e < upTargets.length; e += 1) {
+                out.writeInt(upTargets[e]);
+                out.writeDouble(upWeights[e]);
+                out.writeInt(upMiddles[e]);
+            }
+        }
+    }
+
+    /**
+     * Reads a hierarchy written by write.
+     * @return The hierarchy, or null if the file is missing or was built for another graph.
+     */
+    static ContractionHierarchy read(File file, GraphDB g) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != fingerprint(g) || in.readInt() != g.size()) {
+                return null;
+            }
+            int n = g.size();
+            int m = in.readInt();
+            int[] rank = new int[n];
+            int[] upOffsets = new int[n + 1];
+            int[] upTargets = new int[m];
+            double[] upWeights = new double[m];
+            int[] upMiddles = new int[m];
+            for (int v = 0; v < n; v += 1) {
+                rank[v] = in.readInt();
+            }
+            for (int v = 0; v <= n; v += 1) {
+                upOffsets[v] = in.readInt();
+            }
+            for (int e = 0; e < m; e += 1) {
+                upTargets[e] = in.readInt();
+                upWeights[e] = in.readDouble();
+                upMiddles[e] = in.readInt();
+            }
+            return new ContractionHierarchy(g, rank, upOffsets, upTargets, upWeights, upMiddles);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Returns a hash of the vertex ids and edge count of g, so a hierarchy is never used with
+     * a graph it was not built for. */
+    private static long fingerprint(GraphDB g) {
+        long h = g.numEdges();
+        for (int v = 0; v < g.size(); v += 1) {
+            h = 31 * h + g.id(v);
+        }
+        return h;
+    }
+
+    /**
+     * The mutable state of preprocessing: an undirected adjacency list of the remaining graph,
+     * shortcuts included, with edge weights and bypassed vertices.
+     */
+    private static class Contractor {
+        private final GraphDB g;
+        private final int n;
+        private final int[][] adj;
+        private final double[][] adjWeights;
+        private final int[][] adjMiddles;
+        private final int[] degree;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        /** One more than the highest level among the contracted neighbors of a vertex. */
+        private final int[] level;
+        /* Witness search state, reused across searches. */
+        private final double[] witnessDist;
+        private final int[] witnessStamp;
+        private final IndexedMinHeap witnessFringe;
+        private int witnessGeneration;
+
+        Contractor(GraphDB g) {
+            this.g = g;
+            this.n = g.size();
+            adj = new int[n][];
+            adjWeights = new double[n][];
+            adjMiddles = new int[n][];
+            degree = new int[n];
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            level = new int[n];
+            witnessDist = new double[n];
+            witnessStamp = new int[n];
+            witnessFringe = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v += 1) {
+                int size = Math.max(g.firstEdge(v + 1) - g.firstEdge(v), 1);
+                adj[v] = new int[size];
+                adjWeights[v] = new double[size];
+                adjMiddles[v] = new int[size];
+            }
+            for (int v = 0; v < n; v += 1) {
+                for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                    int w = g.edgeTarget(e);
+                    if (w != v) {
+                        addArc(v, w, g.edgeLength(e), -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy contractAll() {
+            PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0]
+                    ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+            for (int v = 0; v < n; v += 1) {
+                queue.add(new double[]{priority(v), v});
+            }
+            int[] rank = new int[n];
+            List<int[]> upArcs = new ArrayList<>();
+            List<Double> upArcWeights = new ArrayList<>();
+            int nextRank = 0;
+            while (!queue.isEmpty()) {
+                int v = (int) queue.poll()[1];
+                /* Lazy update: priorities of the remaining vertices only ever grow stale, so
+                 * re-evaluate v and put it back if it is no longer the least important. */
+                double p = priority(v);
+                if (!queue.isEmpty() && p > queue.peek()[0]) {
+                    queue.add(new double[]{p, v});
+                    continue;
+                }
+                for (int i = 0; i < degree[v]; i += 1) {
+                    int w = adj[v][i];
+                    if (!contracted[w]) {
+                        upArcs.add(new int[]{v, w, adjMiddles[v][i]});
+                        upArcWeights.add(adjWeights[v][i]);
+                        contractedNeighbors[w] += 1;
+                        level[w] = Math.max(level[w], level[v] + 1);
+                    }
+                }
+                contract(v, false);
+                contracted[v] = true;
+                rank[v] = nextRank;
+                nextRank += 1;
+            }
+
+            int m = upArcs.size();
+            int[] upOffsets = new int[n + 1];
+            for (int[] arc : upArcs) {
+                upOffsets[arc[0] + 1] += 1;
+            }
+            for (int v = 0; v < n; v += 1) {
+                upOffsets[v + 1] += upOffsets[v];
+            }
+            int[] fill = Arrays.copyOf(upOffsets, n);
+            int[] upTargets = new int[m];
+            double[] upWeights = new double[m];
+            int[] upMiddles = new int[m];
+            for (int i = 0; i < m; i += 1) {
+                int[] arc = upArcs.get(i);
+                int e = fill[arc[0]];
+                upTargets[e] = arc[1];
+                upWeights[e] = upArcWeights.get(i);
+                upMiddles[e] = arc[2];
+                fill[arc[0]] += 1;
+            }
+            return new ContractionHierarchy(g, rank, upOffsets, upTargets, upWeights, upMiddles);
+        }
+
+        /** Edge difference of contracting v, plus terms that spread contraction uniformly over
+         * the graph and keep the hierarchy shallow. */
+        private double priority(int v) {
+            int remaining = 0;
+            for (int i = 0; i < degree[v]; i += 1) {
+                if (!contracted[adj[v][i]]) {
+                    remaining += 1;
+                }
+            }
+            return 2 * (contract(v, true) - remaining) + contractedNeighbors[v] + level[v];
+        }
+
+        /**
+         * Adds the shortcuts needed to contract v, or only counts them if simulate is set.
+         * @return The number of shortcuts.
+         */
+        private int contract(int v, boolean simulate) {
+            List<Integer> neighbors = new ArrayList<>();
+            List<Double> weights = new ArrayList<>();
+            for (int i = 0; i < degree[v]; i += 1) {
+                if (!contracted[adj[v][i]]) {
+                    neighbors.add(adj[v][i]);
+                    weights.add(adjWeights[v][i]);
+                }
+            }
+            int shortcuts = 0;
+            for (int i = 0; i < neighbors.size(); i += 1) {
+                double maxDist = 0;
+                for (int j = i + 1; j < neighbors.size(); j += 1) {
+                    maxDist = Math.max(maxDist, weights.get(i) + weights.get(j));
+                }
+                if (maxDist == 0) {
+                    continue;
+                }
+                witnessSearch(neighbors.get(i), v, maxDist,
+                        simulate ? MAX_SIMULATED_WITNESS_SETTLED : MAX_WITNESS_SETTLED);
+                for (int j = i + 1; j < neighbors.size(); j += 1) {
+                    double viaV = weights.get(i) + weights.get(j);
+                    if (witness(neighbors.get(j)) > viaV) {
+                        shortcuts += 1;
+                        if (!simulate) {
+                            addArc(neighbors.get(i), neighbors.get(j), viaV, v);
+                            addArc(neighbors.get(j), neighbors.get(i), viaV, v);
+                        }
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /** Runs Dijkstra from u over the remaining graph without v, up to maxDist. */
+        private void witnessSearch(int u, int v, double maxDist, int maxSettled) {
+            witnessGeneration += 1;
+            witnessFringe.clear();
+            setWitness(u, 0.0);
+            witnessFringe.add(u, 0.0);
+            int settled = 0;
+            while (!witnessFringe.isEmpty() && settled < maxSettled) {
+                if (witnessFringe.peekPriority() > maxDist) {
+                    break;
+                }
+                int x = witnessFringe.poll();
+                settled += 1;
+                for (int i = 0; i < degree[x]; i += 1) {
+                    int y = adj[x][i];
+                    if (y == v || contracted[y]) {
+                        continue;
+                    }
+                    double d = witness(x) + adjWeights[x][i];
+                    if (d < witness(y)) {
+                        setWitness(y, d);
+                        witnessFringe.add(y, d);
+                    }
+                }
+            }
+        }
+
+        private double witness(int x) {
+            return witnessStamp[x] == witnessGeneration ? witnessDist[x] : Double.MAX_VALUE;
+        }
+
+        private void setWitness(int x, double d) {
+            witnessDist[x] = d;
+            witnessStamp[x] = witnessGeneration;
+        }
+
+        /** Adds the arc u -> w, or shortens the existing one if the new weight is smaller. */
+        private void addArc(int u, int w, double weight, int middle) {
+            for (int i = 0; i < degree[u]; i += 1) {
+                if (adj[u][i] == w) {
+                    if (weight < adjWeights[u][i]) {
+                        adjWeights[u][i] = weight;
+                        adjMiddles[u][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[u] == adj[u].length) {
+                adj[u] = Arrays.copyOf(adj[u], 2 * degree[u]);
+                adjWeights[u] = Arrays.copyOf(adjWeights[u], 2 * degree[u]);
+                adjMiddles[u] = Arrays.copyOf(adjMiddles[u], 2 * degree[u]);
+            }
+            adj[u][degree[u]] = w;
+            adjWeights[u][degree[u]] = weight;
+            adjMiddles[u][degree[u]] = middle;
+            degree[u] += 1;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.xml.sax.helpers.DefaultHandler;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -32,17 +33,20 @@ public class GraphBuildingHandler extends DefaultHandler {
      * Only allow for non-service roads; this prevents going on pedestrian streets as much as
      * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
      * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
+     * actually drive on them. The graph records the index of each way's type in this list, so
+     * new types go at the end.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
+    static final List<String> HIGHWAY_TYPES = Collections.unmodifiableList(Arrays.asList(
+            "motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+            "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+            "secondary_link", "tertiary_link"));
+    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(HIGHWAY_TYPES);
     private String activeState = "";
     private final GraphDB g;
     private List<Long> wayListNodeIds;
     private boolean isValidWay;
     private String way;
+    private String highway;
     private Long wayId;
     private Node lastNode;
 
@@ -96,6 +100,7 @@ public class GraphBuildingHandler extends DefaultHandler {
             if (k.equals("highway")) {
                 if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
                     this.isValidWay = true;
+                    this.highway = v;
                 }
             } else if (k.equals("name")) {
                 this.way = v;
@@ -125,16 +130,13 @@ public class GraphBuildingHandler extends DefaultHandler {
                 while (wayListNodeIds.size() > 1) {
                     Long vId = wayListNodeIds.get(0);
                     Long wId = wayListNodeIds.get(1);
-                    g.addEdge(this.wayId, this.way, vId, wId);
-                    g.addConnectedNodeId(vId);
+                    g.addEdge(this.wayId, this.way, this.highway, vId, wId);
                     wayListNodeIds.remove(0);
-                    if (wayListNodeIds.size() == 1) {
-                        g.addConnectedNodeId(wayListNodeIds.get(0));
-                    }
                 }
             }
             this.wayListNodeIds.clear();
             this.way = "";
+            this.highway = null;
             this.isValidWay = false;
             this.wayId = 0L;
             this.lastNode = null;
@@ -3,10 +3,14 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -20,19 +24,75 @@ import java.util.*;
 public class GraphDB {
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
-    private Map<Long, Node> vertices = new LinkedHashMap<>();
     private Map<Long, Node> locationVertices = new LinkedHashMap<>();
     private Trie locations = new Trie();
-    private Set<Long> connectedNodeIds = new HashSet<>();
-    private Map<Long, String> ways = new HashMap<>();
+
+    /* Parse-time state, discarded by clean() once the compact graph is built. */
+    private Map<Long, Node> parsedNodes = new HashMap<>();
+    private Map<Long, Integer> parsedWays = new HashMap<>();
+    private List<String> parsedWayNames = new ArrayList<>();
+    private List<Byte> parsedWayHighways = new ArrayList<>();
+    private long[] parsedEdgeEnds = new long[1024];
+    private int[] parsedEdgeWays = new int[512];
+    private int numParsedEdges = 0;
+
+    /*
+     * Immutable compressed sparse row (CSR) representation of the cleaned graph. Vertices are
+     * identified by a dense index into ids (sorted ascending, so index(id) is a binary search).
+     * The neighbors of vertex v are targets[offsets[v]] to targets[offsets[v + 1] - 1];
+     * edgeLengths holds the great-circle length in miles of each of those edges and edgeWays
+     * the index into wayNames of the way it belongs to. wayHighways holds the type of each way
+     * as an index into GraphBuildingHandler.HIGHWAY_TYPES, or -1 if it is unknown.
+     * The buffers either wrap arrays built by clean() or are views of a memory-mapped
+     * GraphSnapshot, in which case the pages are shared with other processes mapping it.
+     */
+    private LongBuffer ids;
+    private DoubleBuffer lons;
+    private DoubleBuffer lats;
+    private IntBuffer offsets;
+    private IntBuffer targets;
+    private DoubleBuffer edgeLengths;
+    private IntBuffer edgeWays;
+    private String[] wayNames;
+    private byte[] wayHighways;
+    /* Scales of the equirectangular lower bound on distances, see distanceLowerBound. */
+    private double lowerBoundLonScale;
+    private double lowerBoundMilesPerDegree;
+    private SpatialIndex spatialIndex;
+    /** Landmark distances for Router.Algorithm.ALT, or null if none were requested. */
+    private Landmarks landmarks;
+    /** Optional preprocessed hierarchy for Router.Algorithm.CH; null until one is set. */
+    private volatile ContractionHierarchy contractionHierarchy;
+    /** Idle search workspaces, shared by all threads routing on this graph. */
+    private final Queue<SearchWorkspace> workspaces = new ConcurrentLinkedQueue<>();
+
     /**
      * Example constructor shows how to create and start an XML parser.
      * You do not need to modify this constructor, but you're welcome to do so.
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, Landmarks.DEFAULT_COUNT);
+    }
+
+    /**
+     * Same as above, but picks the given number of landmarks for Router.Algorithm.ALT. The
+     * landmarks are saved in the snapshot along with the graph, and picked again whenever the
+     * snapshot holds a different number of them.
+     */
+    public GraphDB(String dbPath, int numLandmarks) {
+        File inputFile = new File(dbPath);
+        File snapshotFile = new File(dbPath + GraphSnapshot.EXTENSION);
+        if (GraphSnapshot.read(this, inputFile, snapshotFile)) {
+            int expected = Math.min(numLandmarks, size());
+            int actual = landmarks == null ? 0 : landmarks.size();
+            if (actual != expected) {
+                landmarks = expected > 0 ? Landmarks.select(this, expected) : null;
+                GraphSnapshot.write(this, inputFile, snapshotFile);
+            }
+            return;
+        }
         try {
-            File inputFile = new File(dbPath);
             FileInputStream inputStream = new FileInputStream(inputFile);
             // GZIPInputStream stream = new GZIPInputStream(inputStream);
 
@@ -44,42 +104,58 @@ public class GraphDB {
             e.printStackTrace();
         }
         clean();
+        if (numLandmarks > 0 && size() > 0) {
+            landmarks = Landmarks.select(this, numLandmarks);
+        }
+        GraphSnapshot.write(this, inputFile, snapshotFile);
     }
 
     public void addLocation(Long id, String name) {
         this.locations.add(name, id);
     }
 
-    public void addConnectedNodeId(Long id) {
-        this.connectedNodeIds.add(id);
-    }
-
     public void addNode(Node v) {
-        this.vertices.put(v.getId(), v);
+        this.parsedNodes.put(v.getId(), v);
     }
 
     public void addLocationNode(Node v) {
         this.locationVertices.put(v.getId(), v);
     }
 
+    /**
+     * Records an undirected edge between vertices vId and wId along the given way. Edges are
+     * buffered until the parse is complete, and only then laid out by clean().
+     */
     public void addEdge(Long wayId, String way, long vId, long wId) {
-        this.ways.put(wayId, way);
-        this.vertices.get(vId).addAdj(wId, wayId);
-        this.vertices.get(wId).addAdj(vId, wayId);
+        addEdge(wayId, way, null, vId, wId);
     }
 
-    public Node getNode(Long id) {
-        return this.vertices.get(id);
+    /**
+     * Same as above, also recording the highway tag of the way, e.g. "primary", or null if
+     * it is not known.
+     */
+    public void addEdge(Long wayId, String way, String highway, long vId, long wId) {
+        Integer wayIndex = this.parsedWays.get(wayId);
+        if (wayIndex == null) {
+            wayIndex = this.parsedWayNames.size();
+            this.parsedWays.put(wayId, wayIndex);
+            this.parsedWayNames.add(way);
+            this.parsedWayHighways.add((byte) GraphBuildingHandler.HIGHWAY_TYPES.indexOf(highway));
+        }
+        if (numParsedEdges == parsedEdgeWays.length) {
+            parsedEdgeEnds = Arrays.copyOf(parsedEdgeEnds, parsedEdgeEnds.length * 2);
+            parsedEdgeWays = Arrays.copyOf(parsedEdgeWays, parsedEdgeWays.length * 2);
+        }
+        parsedEdgeEnds[2 * numParsedEdges] = vId;
+        parsedEdgeEnds[2 * numParsedEdges + 1] = wId;
+        parsedEdgeWays[numParsedEdges] = wayIndex;
+        numParsedEdges += 1;
     }
 
     public Node getLocationNode(Long id) {
         return this.locationVertices.get(id);
     }
 
-    public String getWay(Long id) {
-        return this.ways.get(id);
-    }
-
     public Trie getLocations() {
         return this.locations;
     }
@@ -98,17 +174,131 @@ public class GraphDB {
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      *
-     *
+     *  The surviving vertices and their edges are then packed into the CSR arrays, and the
+     *  parse-time maps are released.
      */
-
     private void clean() {
-       Iterator<Long> iter = this.vertices.keySet().iterator();
-       while (iter.hasNext()) {
-           Long id = iter.next();
-           if (!this.connectedNodeIds.contains(id)) {
-               iter.remove();
-           }
-       }
+        long[] ends = new long[2 * numParsedEdges];
+        int numEnds = 0;
+        for (int i = 0; i < 2 * numParsedEdges; i += 1) {
+            if (parsedNodes.containsKey(parsedEdgeEnds[i])) {
+                ends[numEnds] = parsedEdgeEnds[i];
+                numEnds += 1;
+            }
+        }
+        Arrays.sort(ends, 0, numEnds);
+        int n = 0;
+        for (int i = 0; i < numEnds; i += 1) {
+            if (n == 0 || ends[i] != ends[n - 1]) {
+                ends[n] = ends[i];
+                n += 1;
+            }
+        }
+        long[] idArray = Arrays.copyOf(ends, n);
+        double[] lonArray = new double[n];
+        double[] latArray = new double[n];
+        for (int v = 0; v < n; v += 1) {
+            Node node = parsedNodes.get(idArray[v]);
+            lonArray[v] = node.getLon();
+            latArray[v] = node.getLat();
+        }
+
+        /* Counting sort of both directions of every edge into per-vertex buckets. */
+        int[] from = new int[2 * numParsedEdges];
+        int[] to = new int[2 * numParsedEdges];
+        int[] way = new int[2 * numParsedEdges];
+        int[] degree = new int[n + 1];
+        int m = 0;
+        for (int e = 0; e < numParsedEdges; e += 1) {
+            int v = Arrays.binarySearch(idArray, parsedEdgeEnds[2 * e]);
+            int w = Arrays.binarySearch(idArray, parsedEdgeEnds[2 * e + 1]);
+            if (v < 0 || w < 0) {
+                continue;
+            }
+            from[m] = v;
+            to[m] = w;
+            way[m] = parsedEdgeWays[e];
+            from[m + 1] = w;
+            to[m + 1] = v;
+            way[m + 1] = parsedEdgeWays[e];
+            degree[v + 1] += 1;
+            degree[w + 1] += 1;
+            m += 2;
+        }
+        for (int v = 0; v < n; v += 1) {
+            degree[v + 1] += degree[v];
+        }
+        int[] bucketTargets = new int[m];
+        int[] bucketWays = new int[m];
+        int[] fill = Arrays.copyOf(degree, n);
+        for (int i = 0; i < m; i += 1) {
+            bucketTargets[fill[from[i]]] = to[i];
+            bucketWays[fill[from[i]]] = way[i];
+            fill[from[i]] += 1;
+        }
+
+        /* A pair of vertices shared by several ways keeps a single edge, labelled with the
+         * way that was parsed last. */
+        int[] offsetArray = new int[n + 1];
+        int k = 0;
+        for (int v = 0; v < n; v += 1) {
+            offsetArray[v] = k;
+            for (int i = degree[v]; i < degree[v + 1]; i += 1) {
+                int dup = offsetArray[v];
+                while (dup < k && bucketTargets[dup] != bucketTargets[i]) {
+                    dup += 1;
+                }
+                bucketTargets[dup] = bucketTargets[i];
+                bucketWays[dup] = bucketWays[i];
+                if (dup == k) {
+                    k += 1;
+                }
+            }
+        }
+        offsetArray[n] = k;
+        double[] lengthArray = new double[k];
+        for (int v = 0; v < n; v += 1) {
+            for (int e = offsetArray[v]; e < offsetArray[v + 1]; e += 1) {
+                int w = bucketTargets[e];
+                lengthArray[e] = distance(lonArray[v], latArray[v], lonArray[w], latArray[w]);
+            }
+        }
+        setGraph(LongBuffer.wrap(idArray), DoubleBuffer.wrap(lonArray),
+                DoubleBuffer.wrap(latArray), IntBuffer.wrap(offsetArray),
+                IntBuffer.wrap(Arrays.copyOf(bucketTargets, k)), DoubleBuffer.wrap(lengthArray),
+                IntBuffer.wrap(Arrays.copyOf(bucketWays, k)),
+                parsedWayNames.toArray(new String[0]), toBytes(parsedWayHighways));
+    }
+
+    private static byte[] toBytes(List<Byte> list) {
+        byte[] bytes = new byte[list.size()];
+        for (int i = 0; i < bytes.length; i += 1) {
+            bytes[i] = list.get(i);
+        }
+        return bytes;
+    }
+
+    /** Installs the CSR storage of the graph, either freshly built or read from a snapshot. */
+    void setGraph(LongBuffer ids, DoubleBuffer lons, DoubleBuffer lats, IntBuffer offsets,
+                  IntBuffer targets, DoubleBuffer edgeLengths, IntBuffer edgeWays,
+                  String[] wayNames, byte[] wayHighways) {
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.edgeLengths = edgeLengths;
+        this.edgeWays = edgeWays;
+        this.wayNames = wayNames;
+        this.wayHighways = wayHighways;
+        initLowerBound();
+        this.spatialIndex = new SpatialIndex(this);
+        parsedNodes = null;
+        parsedWays = null;
+        parsedWayNames = null;
+        parsedWayHighways = null;
+        parsedEdgeEnds = null;
+        parsedEdgeWays = null;
     }
 
     /**
@@ -116,7 +306,17 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        return this.vertices.keySet();
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return ids.get(i);
+            }
+
+            @Override
+            public int size() {
+                return ids.limit();
+            }
+        };
     }
 
     /**
@@ -125,7 +325,208 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        return this.vertices.get(v).getAdj().keySet();
+        final int begin = offsets.get(index(v));
+        final int end = offsets.get(index(v) + 1);
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return ids.get(targets.get(begin + i));
+            }
+
+            @Override
+            public int size() {
+                return end - begin;
+            }
+        };
+    }
+
+    /** Returns the number of vertices in the graph. */
+    int size() {
+        return ids.limit();
+    }
+
+    /**
+     * Returns the dense index of the vertex with the given id, in [0, size()).
+     * @throws IllegalArgumentException if the graph has no such vertex.
+     */
+    int index(long id) {
+        int v = find(id);
+        if (v < 0) {
+            throw new IllegalArgumentException("No vertex with id " + id);
+        }
+        return v;
+    }
+
+    /** Returns the dense index of the vertex with the given id, or -1 if there is none. */
+    int find(long id) {
+        int lo = 0;
+        int hi = ids.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the id of the vertex with dense index v. */
+    long id(int v) {
+        return ids.get(v);
+    }
+
+    /** Returns the longitude of the vertex with dense index v. */
+    double lonAt(int v) {
+        return lons.get(v);
+    }
+
+    /** Returns the latitude of the vertex with dense index v. */
+    double latAt(int v) {
+        return lats.get(v);
+    }
+
+    /** Returns the first edge index of vertex v; its edges are firstEdge(v) to
+     * firstEdge(v + 1) - 1. */
+    int firstEdge(int v) {
+        return offsets.get(v);
+    }
+
+    /** Returns the index of the vertex that edge e leads to. */
+    int edgeTarget(int e) {
+        return targets.get(e);
+    }
+
+    /** Returns the great-circle length of edge e in miles, i.e. distanceAt(v, edgeTarget(e))
+     * for the vertex v it leaves from. */
+    double edgeLength(int e) {
+        return edgeLengths.get(e);
+    }
+
+    /** Returns the way index of edge e, to be passed to wayName. */
+    int edgeWay(int e) {
+        return edgeWays.get(e);
+    }
+
+    /** Returns the index of the edge from v to w, or -1 if they are not adjacent. */
+    int edgeBetween(int v, int w) {
+        for (int e = offsets.get(v); e < offsets.get(v + 1); e += 1) {
+            if (targets.get(e) == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a reset search workspace sized for this graph, reusing an idle one if possible.
+     * Hand it back with releaseWorkspace once the search is over.
+     */
+    SearchWorkspace acquireWorkspace() {
+        SearchWorkspace ws = workspaces.poll();
+        if (ws == null) {
+            ws = new SearchWorkspace(size());
+        }
+        ws.reset();
+        return ws;
+    }
+
+    /** Returns a workspace obtained from acquireWorkspace to the pool. */
+    void releaseWorkspace(SearchWorkspace ws) {
+        workspaces.offer(ws);
+    }
+
+    /** Returns the landmarks of this graph, or null if it has none. */
+    Landmarks landmarks() {
+        return landmarks;
+    }
+
+    /** Installs landmarks read from a snapshot. */
+    void setLandmarks(Landmarks landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    /** Returns the contraction hierarchy of this graph, or null if none has been set. */
+    ContractionHierarchy contractionHierarchy() {
+        return contractionHierarchy;
+    }
+
+    /** Sets the contraction hierarchy used by Router.Algorithm.CH. It must have been built
+     * from this graph. */
+    void setContractionHierarchy(ContractionHierarchy contractionHierarchy) {
+        this.contractionHierarchy = contractionHierarchy;
+    }
+
+    /** Returns the number of directed edges, i.e. twice the number of roads between
+     * adjacent vertices. */
+    int numEdges() {
+        return targets.limit();
+    }
+
+    /** Returns the number of distinct ways; way indices are in [0, numWays()). */
+    int numWays() {
+        return wayNames.length;
+    }
+
+    /** Returns the name of the way with the given way index. */
+    String wayName(int way) {
+        return wayNames[way];
+    }
+
+    /** Returns the highway type of the way with the given way index, as an index into
+     * GraphBuildingHandler.HIGHWAY_TYPES, or -1 if it is unknown. */
+    int wayHighway(int way) {
+        return wayHighways[way];
+    }
+
+    /** Returns the great-circle distance in miles between the vertices with dense indices
+     * v and w. */
+    double distanceAt(int v, int w) {
+        return distance(lons.get(v), lats.get(v), lons.get(w), lats.get(w));
+    }
+
+    /**
+     * Returns a lower bound on the great-circle distance in miles between the vertices with
+     * dense indices v and w, without any trig: their distance on an equirectangular projection
+     * that is scaled to be shorter than the sphere everywhere on this graph. Since it is a
+     * distance, it is also a consistent A* heuristic.
+     */
+    double distanceLowerBound(int v, int w) {
+        double dlon = lowerBoundLonScale * (lons.get(w) - lons.get(v));
+        double dlat = lats.get(w) - lats.get(v);
+        return lowerBoundMilesPerDegree * Math.sqrt(dlon * dlon + dlat * dlat);
+    }
+
+    /**
+     * Computes the scales of distanceLowerBound. With s the largest half difference in
+     * latitude or longitude between two vertices (in radians), sin(x) >= x (1 - s^2 / 6) for
+     * every half difference x, and the cosine of each latitude is at least the smallest one
+     * over the graph. Plugging both into the haversine formula, and asin(y) >= y, gives
+     * distance >= R (1 - s^2 / 6) sqrt(dlat^2 + (minCos dlon)^2).
+     */
+    private void initLowerBound() {
+        if (size() == 0) {
+            return;
+        }
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < size(); v += 1) {
+            minLon = Math.min(minLon, lons.get(v));
+            maxLon = Math.max(maxLon, lons.get(v));
+            minLat = Math.min(minLat, lats.get(v));
+            maxLat = Math.max(maxLat, lats.get(v));
+        }
+        double s = Math.toRadians(Math.max(maxLon - minLon, maxLat - minLat)) / 2;
+        double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(maxLat));
+        lowerBoundLonScale = Math.cos(Math.toRadians(Math.min(maxAbsLat, 90)));
+        /* The extra 1e-9 absorbs rounding errors, which are many orders of magnitude smaller. */
+        lowerBoundMilesPerDegree = 3963 * Math.toRadians(1) * Math.max(1 - s * s / 6 - 1e-9, 0);
     }
 
     /**
@@ -148,6 +549,14 @@ public class GraphDB {
 
         double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
         a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
+        return distance(a);
+    }
+
+    /**
+     * Returns the great-circle distance in miles corresponding to the haversine term a, the
+     * square of half the chord length between two points on the unit sphere.
+     */
+    static double distance(double a) {
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
         return 3963 * c;
     }
@@ -186,16 +595,38 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        double dist = Double.MAX_VALUE;
-        long closestVertexId = 0;
-        for (Long id : this.vertices.keySet()) {
-            double x = distance(lon(id), lat(id), lon, lat);
-            if (x < dist) {
-                dist = x;
-                closestVertexId = id;
-            }
+        int v = spatialIndex.closest(lon, lat);
+        return v == -1 ? 0 : ids.get(v);
+    }
+
+    /**
+     * Returns the vertices closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The number of vertices to return.
+     * @return The ids of the k vertices closest to the target, nearest first.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(spatialIndex.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns all vertices within a great-circle distance of the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param miles The search radius in miles.
+     * @return The ids of the vertices within the radius, nearest first.
+     */
+    List<Long> withinRadius(double lon, double lat, double miles) {
+        return toIds(spatialIndex.withinRadius(lon, lat, miles));
+    }
+
+    private List<Long> toIds(int[] indices) {
+        List<Long> result = new ArrayList<>(indices.length);
+        for (int v : indices) {
+            result.add(ids.get(v));
         }
-        return closestVertexId;
+        return result;
     }
 
     /**
@@ -204,7 +635,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return this.vertices.get(v).getLon();
+        return lons.get(index(v));
     }
 
     /**
@@ -213,6 +644,6 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return this.vertices.get(v).getLat();
+        return lats.get(index(v));
     }
 }
@@ -0,0 +1,254 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes versioned binary snapshots of a GraphDB, so that a server only has to parse
+ * the OSM XML once. Snapshots are memory-mapped read-only and the CSR arrays of the graph are
+ * views of the mapping, so loading does not copy them and several server processes on one
+ * machine share the same pages.
+ *
+ * The layout is little-endian: a 56 byte header (magic, version, length and modification time
+ * of the source XML file, CRC32 of everything after the header, the vertex, edge, way,
+ * location and landmark counts, and 4 bytes of padding), followed by ids, lons, lats, edge
+ * lengths, offsets, targets, edge ways, landmark vertices and landmark distances, padded to a
+ * multiple of 8 bytes, then the way names as length-prefixed UTF-8, a byte per way with its
+ * highway type, and finally the named locations as length-prefixed UTF-8.
+ * A snapshot whose header does not match the source file is considered stale and ignored.
+ */
+public class GraphSnapshot {
+    /** Suffix appended to the OSM file path to get the snapshot path. */
+    static final String EXTENSION = ".snapshot";
+    /** Bump whenever the layout changes, so old snapshots are rebuilt instead of misread. */
+    static final int VERSION = 4;
+    private static final int MAGIC = 0x424d4753;
+    private static final int HEADER_BYTES = 56;
+
+    /**
+     * Loads the snapshot into g, if it exists and is up to date with source.
+     * @param g The empty graph to populate.
+     * @param source The OSM XML file the snapshot was built from.
+     * @param snapshot The snapshot file.
+     * @return Whether g was populated; if not, g has not been modified.
+     */
+    static boolean read(GraphDB g, File source, File snapshot) {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION || buffer.getLong(8) != source.length()
+                    || buffer.getLong(16) != source.lastModified()) {
+                return false;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (buffer.getLong(24) != crc.getValue()) {
+                throw new IOException("Corrupt graph snapshot " + snapshot);
+            }
+
+            int n = buffer.getInt(32);
+            int m = buffer.getInt(36);
+            int numWays = buffer.getInt(40);
+            int numLocations = buffer.getInt(44);
+            int numLandmarks = buffer.getInt(48);
+            long pos = HEADER_BYTES;
+            LongBuffer ids = slice(buffer, pos, 8L * n).asLongBuffer();
+            pos += 8L * n;
+            DoubleBuffer lons = slice(buffer, pos, 8L * n).asDoubleBuffer();
+            pos += 8L * n;
+            DoubleBuffer lats = slice(buffer, pos, 8L * n).asDoubleBuffer();
+            pos += 8L * n;
+            DoubleBuffer edgeLengths = slice(buffer, pos, 8L * m).asDoubleBuffer();
+            pos += 8L * m;
+            IntBuffer offsets = slice(buffer, pos, 4L * (n + 1)).asIntBuffer();
+            pos += 4L * (n + 1);
+            IntBuffer targets = slice(buffer, pos, 4L * m).asIntBuffer();
+            pos += 4L * m;
+            IntBuffer edgeWays = slice(buffer, pos, 4L * m).asIntBuffer();
+            pos += 4L * m;
+            int[] landmarkVertices = new int[numLandmarks];
+            slice(buffer, pos, 4L * numLandmarks).asIntBuffer().get(landmarkVertices);
+            pos += 4L * numLandmarks;
+            FloatBuffer landmarkDistances = slice(buffer, pos, 4L * n * numLandmarks)
+                    .asFloatBuffer();
+            pos += 4L * n * numLandmarks;
+
+            buffer.position(Math.toIntExact(align(pos)));
+            String[] wayNames = new String[numWays];
+            for (int i = 0; i < numWays; i += 1) {
+                wayNames[i] = getString(buffer);
+            }
+            byte[] wayHighways = new byte[numWays];
+            buffer.get(wayHighways);
+            List<Node> locationNodes = new ArrayList<>();
+            List<String> locationNames = new ArrayList<>();
+            for (int i = 0; i < numLocations; i += 1) {
+                locationNodes.add(new Node(buffer.getLong(), buffer.getDouble(),
+                        buffer.getDouble()));
+                locationNames.add(getString(buffer));
+            }
+
+            g.setGraph(ids, lons, lats, offsets, targets, edgeLengths, edgeWays, wayNames,
+                    wayHighways);
+            if (numLandmarks > 0) {
+                g.setLandmarks(new Landmarks(landmarkVertices, landmarkDistances));
+            }
+            for (int i = 0; i < numLocations; i += 1) {
+                g.addLocation(locationNodes.get(i).getId(), locationNames.get(i));
+                g.addLocationNode(locationNodes.get(i));
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes a snapshot of g, stamped with the current length and modification time of source.
+     * The file is written under a temporary name and then renamed into place, so concurrently
+     * starting servers never map a partially written snapshot.
+     */
+    static void write(GraphDB g, File source, File snapshot) {
+        int n = g.size();
+        int m = g.numEdges();
+        byte[][] wayNames = new byte[g.numWays()][];
+        long stringBytes = 0;
+        for (int i = 0; i < wayNames.length; i += 1) {
+            wayNames[i] = g.wayName(i).getBytes(StandardCharsets.UTF_8);
+            stringBytes += 4 + wayNames[i].length + 1;
+        }
+        List<Node> locationNodes = new ArrayList<>();
+        List<byte[]> locationNames = new ArrayList<>();
+        for (String name : g.getLocations().keysWithPrefix("")) {
+            for (long id : g.getLocations().getLocationIds(name)) {
+                locationNodes.add(g.getLocationNode(id));
+                locationNames.add(name.getBytes(StandardCharsets.UTF_8));
+                stringBytes += 8 + 8 + 8 + 4 + name.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        Landmarks landmarks = g.landmarks();
+        int k = landmarks == null ? 0 : landmarks.size();
+        long arrayBytes = 8L * n + 8L * n + 8L * n + 8L * m + 4L * (n + 1) + 4L * m + 4L * m
+                + 4L * k + 4L * n * k;
+        long snapshotBytes = align(HEADER_BYTES + arrayBytes) + stringBytes;
+        if (snapshotBytes > Integer.MAX_VALUE) {
+            new IOException("Graph snapshot " + snapshot + " would take " + snapshotBytes
+                    + " bytes, more than a buffer can hold").printStackTrace();
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) snapshotBytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(source.length())
+                .putLong(source.lastModified()).putLong(0L)
+                .putInt(n).putInt(m).putInt(wayNames.length).putInt(locationNodes.size())
+                .putInt(k).putInt(0);
+        for (int v = 0; v < n; v += 1) {
+            buffer.putLong(g.id(v));
+        }
+        for (int v = 0; v < n; v += 1) {
+            buffer.putDouble(g.lonAt(v));
+        }
+        for (int v = 0; v < n; v += 1) {
+            buffer.putDouble(g.latAt(v));
+        }
+        for (int e = 0; e < m; e += 1) {
+            buffer.putDouble(g.edgeLength(e));
+        }
+        for (int v = 0; v <= n; v += 1) {
+            buffer.putInt(g.firstEdge(v));
+        }
+        for (int e = 0; e < m; e += 1) {
+            buffer.putInt(g.edgeTarget(e));
+        }
+        for (int e = 0; e < m; e += 1) {
+            buffer.putInt(g.edgeWay(e));
+        }
+        for (int i = 0; i < k; i += 1) {
+            buffer.putInt(landmarks.vertex(i));
+        }
+        for (int v = 0; v < n; v += 1) {
+            for (int i = 0; i < k; i += 1) {
+                buffer.putFloat(landmarks.distance(i, v));
+            }
+        }
+        buffer.position((int) align(buffer.position()));
+        for (byte[] name : wayNames) {
+            buffer.putInt(name.length).put(name);
+        }
+        for (int i = 0; i < wayNames.length; i += 1) {
+            buffer.put((byte) g.wayHighway(i));
+        }
+        for (int i = 0; i < locationNodes.size(); i += 1) {
+            Node v = locationNodes.get(i);
+            buffer.putLong(v.getId()).putDouble(v.getLon()).putDouble(v.getLat());
+            buffer.putInt(locationNames.get(i).length).put(locationNames.get(i));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, buffer.capacity() - HEADER_BYTES);
+        buffer.putLong(24, crc.getValue());
+        buffer.rewind();
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getAbsoluteFile()
+                    .getParentFile());
+            try (FileChannel channel = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a view of bytes bytes of buffer from pos on.
+     * @throws ArithmeticException if they do not all lie within the first 2 GB, where a
+     * ByteBuffer can reach them.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long pos, long bytes) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(Math.toIntExact(pos));
+        b.limit(Math.toIntExact(pos + bytes));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7;
+    }
+}
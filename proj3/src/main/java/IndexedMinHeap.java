@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * A 4-ary min-heap of vertex indices in [0, capacity) ordered by double priorities, for the
+ * fringes of shortest path searches. Each vertex is in the heap at most once: adding a vertex
+ * that is already there lowers its priority instead (decrease-key), so the heap never holds
+ * stale entries and nothing is allocated per operation.
+ *
+ * A vertex's position is only valid if its stamp equals the current generation, so clear()
+ * empties the heap in O(1) the same way SearchWorkspace.reset() does. Priorities are compared
+ * as exact doubles; ties are broken arbitrarily but deterministically.
+ */
+public class IndexedMinHeap {
+    private static final int ARITY = 4;
+
+    /** The vertices in heap order, and their priorities at the same positions. */
+    private final int[] vertices;
+    private final double[] priorities;
+    /** Position of each vertex in vertices, or -1 once it has been polled. */
+    private final int[] position;
+    private final int[] stamp;
+    private int generation;
+    private int size;
+
+    IndexedMinHeap(int capacity) {
+        this.vertices = new int[capacity];
+        this.priorities = new double[capacity];
+        this.position = new int[capacity];
+        this.stamp = new int[capacity];
+        this.generation = 1;
+    }
+
+    /** Removes all vertices. */
+    void clear() {
+        size = 0;
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns whether v is currently in the heap. */
+    boolean contains(int v) {
+        return stamp[v] == generation && position[v] >= 0;
+    }
+
+    /**
+     * Adds v with the given priority, or lowers its priority if v is already in the heap with
+     * a higher one. A vertex that was polled since the last clear is added again.
+     */
+    void add(int v, double priority) {
+        int i;
+        if (contains(v)) {
+            i = position[v];
+            if (priority >= priorities[i]) {
+                return;
+            }
+        } else {
+            stamp[v] = generation;
+            i = size;
+            size += 1;
+        }
+        siftUp(i, v, priority);
+    }
+
+    /** Returns the vertex with the lowest priority without removing it. */
+    int peek() {
+        return vertices[0];
+    }
+
+    /** Returns the lowest priority in the heap. */
+    double peekPriority() {
+        return priorities[0];
+    }
+
+    /** Removes and returns the vertex with the lowest priority. */
+    int poll() {
+        int min = vertices[0];
+        position[min] = -1;
+        size -= 1;
+        if (size > 0) {
+            siftDown(0, vertices[size], priorities[size]);
+        }
+        return min;
+    }
+
+    /** Moves the hole at position i up until v fits in it, then puts v there. */
+    private void siftUp(int i, int v, double priority) {
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            place(i, vertices[parent], priorities[parent]);
+            i = parent;
+        }
+        place(i, v, priority);
+    }
+
+    /** Moves the hole at position i down until v fits in it, then puts v there. */
+    private void siftDown(int i, int v, double priority) {
+        while (true) {
+            int first = ARITY * i + 1;
+            if (first >= size) {
+                break;
+            }
+            int min = first;
+            int last = Math.min(first + ARITY, size);
+            for (int c = first + 1; c < last; c += 1) {
+                if (priorities[c] < priorities[min]) {
+                    min = c;
+                }
+            }
+            if (priorities[min] >= priority) {
+                break;
+            }
+            place(i, vertices[min], priorities[min]);
+            i = min;
+        }
+        place(i, v, priority);
+    }
+
+    private void place(int i, int v, double priority) {
+        vertices[i] = v;
+        priorities[i] = priority;
+        position[v] = i;
+    }
+}
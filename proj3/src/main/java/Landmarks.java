@@ -0,0 +1,133 @@
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Shortest path distances from a few landmark vertices to every vertex of a GraphDB, for the
+ * ALT (A*, landmarks, triangle inequality) heuristic. Roads are undirected, so for every
+ * landmark L the triangle inequality gives d(v, t) >= |d(L, t) - d(L, v)|, which is a much
+ * tighter bound than the straight line wherever the bay or the hills force a detour.
+ *
+ * Landmarks are picked with the farthest strategy: each one is the vertex farthest from the
+ * landmarks picked before it. Distances are stored as floats, vertex-major so that the bound
+ * for one vertex reads a single run of memory; the buffer either wraps an array or is a view
+ * of a memory-mapped GraphSnapshot.
+ */
+public class Landmarks {
+    /** Number of landmarks picked when the caller does not ask for a specific number. */
+    static final int DEFAULT_COUNT = 16;
+
+    private final int[] vertices;
+    /** Distance from landmark i to vertex v is at distances[v * vertices.length + i], or
+     * infinity if v cannot be reached from it. */
+    private final FloatBuffer distances;
+    /** Subtracted from every bound to make up for rounding the distances to floats. */
+    private final double tolerance;
+
+    Landmarks(int[] vertices, FloatBuffer distances) {
+        this.vertices = vertices;
+        this.distances = distances;
+        float max = 0;
+        for (int i = 0; i < distances.limit(); i += 1) {
+            if (distances.get(i) != Float.POSITIVE_INFINITY) {
+                max = Math.max(max, distances.get(i));
+            }
+        }
+        this.tolerance = 2 * Math.ulp(max);
+    }
+
+    /**
+     * Picks count landmarks in g, or one per vertex if g has fewer, and computes their
+     * distances to every vertex.
+     */
+    static Landmarks select(GraphDB g, int count) {
+        int n = g.size();
+        int k = Math.min(count, n);
+        if ((long) n * k > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many landmarks for a graph of " + n
+                    + " vertices: " + k);
+        }
+        int[] vertices = new int[k];
+        float[] table = new float[n * k];
+        double[] dist = new double[n];
+        double[] minDist = new double[n];
+        Arrays.fill(minDist, Double.MAX_VALUE);
+        IndexedMinHeap fringe = new IndexedMinHeap(n);
+
+        /* The first landmark is the vertex farthest from an arbitrary one. */
+        dijkstra(g, 0, dist, fringe);
+        int next = farthest(dist);
+        for (int i = 0; i < k; i += 1) {
+            vertices[i] = next;
+            dijkstra(g, next, dist, fringe);
+            for (int v = 0; v < n; v += 1) {
+                table[v * k + i] = dist[v] == Double.MAX_VALUE
+                        ? Float.POSITIVE_INFINITY : (float) dist[v];
+                minDist[v] = Math.min(minDist[v], dist[v]);
+            }
+            next = farthest(minDist);
+        }
+        return new Landmarks(vertices, FloatBuffer.wrap(table));
+    }
+
+    /** Returns the number of landmarks. */
+    int size() {
+        return vertices.length;
+    }
+
+    /** Returns the vertex index of landmark i. */
+    int vertex(int i) {
+        return vertices[i];
+    }
+
+    /** Returns the distance in miles from landmark i to vertex v, rounded to a float. */
+    float distance(int i, int v) {
+        return distances.get(v * vertices.length + i);
+    }
+
+    /** Returns a lower bound on the shortest path distance in miles between vertices v and t. */
+    double lowerBound(int v, int t) {
+        int k = vertices.length;
+        int vBase = v * k;
+        int tBase = t * k;
+        double best = 0;
+        for (int i = 0; i < k; i += 1) {
+            float dv = distances.get(vBase + i);
+            float dt = distances.get(tBase + i);
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.abs((double) dt - dv));
+            }
+        }
+        return Math.max(best - tolerance, 0);
+    }
+
+    /** Fills dist with the shortest path distances from s, Double.MAX_VALUE if unreachable. */
+    private static void dijkstra(GraphDB g, int s, double[] dist, IndexedMinHeap fringe) {
+        Arrays.fill(dist, Double.MAX_VALUE);
+        fringe.clear();
+        dist[s] = 0;
+        fringe.add(s, 0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.poll();
+            for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                int w = g.edgeTarget(e);
+                double d = dist[v] + g.edgeLength(e);
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    fringe.add(w, d);
+                }
+            }
+        }
+    }
+
+    /** Returns the vertex with the largest finite distance. */
+    private static int farthest(double[] dist) {
+        int farthest = 0;
+        for (int v = 1; v < dist.length; v += 1) {
+            if (dist[v] != Double.MAX_VALUE
+                    && (dist[farthest] == Double.MAX_VALUE || dist[v] > dist[farthest])) {
+                farthest = v;
+            }
+        }
+        return farthest;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache that holds values up to a total weight (typically bytes), evicting the
+ * least recently used entries once the budget is exceeded. Every operation takes the cache's
+ * lock, but only for a map update; loading a missing value in get(key, loader) happens outside
+ * of it, so a slow load never blocks hits on other keys.
+ *
+ * The cache counts hits, misses and evictions, which MapServer reports on /stats.
+ */
+public class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    /** Entries in access order, least recently used first. */
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxWeight The budget for the total weight of the cached values.
+     * @param weigher Returns the weight of a value; it must not change while it is cached.
+     */
+    LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /** Returns the value cached for key, or null if there is none. */
+    synchronized V get(K key) {
+        V value = map.get(key);
+        if (value == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value cached for key, loading and caching it on a miss. If several threads
+     * miss on the same key at once, each of them loads it. Null values are returned but not
+     * cached.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /** Caches value for key, unless it alone is heavier than the whole budget. */
+    synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            return;
+        }
+        V old = map.put(key, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += w;
+        Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        while (weight > maxWeight) {
+            Map.Entry<K, V> eldest = it.next();
+            weight -= weigher.applyAsLong(eldest.getValue());
+            it.remove();
+            evictions += 1;
+        }
+    }
+
+    /** Returns whether a value is cached for key, without counting a hit or a miss or making
+     * it more recently used. */
+    synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /** Removes the value cached for key, if any. */
+    synchronized void invalidate(K key) {
+        V old = map.remove(key);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+    }
+
+    /**
+     * Removes the value cached for key if it is value, compared by identity.
+     * @return Whether it was removed.
+     */
+    synchronized boolean invalidate(K key, V value) {
+        if (map.get(key) != value) {
+            return false;
+        }
+        map.remove(key);
+        weight -= weigher.applyAsLong(value);
+        return true;
+    }
+
+    /** Removes all cached values. The counters are kept. */
+    synchronized void invalidateAll() {
+        map.clear();
+        weight = 0;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Returns the counters and occupancy of the cache, for reporting as JSON. */
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", map.size());
+        stats.put("weight", weight);
+        stats.put("max_weight", maxWeight);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hit_rate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+}
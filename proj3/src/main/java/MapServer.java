@@ -1,17 +1,30 @@
-import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import java.io.IOException;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 import static spark.Spark.*;
 
@@ -41,11 +54,44 @@ public class MapServer {
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    /**
+     * Tiles are read from this archive of IMG_ROOT instead, if TileArchive has built it since
+     * the tile images last changed.
+     */
+    private static final String TILE_ARCHIVE_PATH = "../library-sp18/data/proj3_imgs"
+            + TileArchive.EXTENSION;
+    /** Budget for decoded tiles kept in memory, at 4 bytes per pixel (256 KB per tile). */
+    private static final long TILE_CACHE_BYTES = 256L * 1024 * 1024;
+    /**
+     * Deepest depth of the rasters. Tile images go to depth 7; deeper tiles are cut out of
+     * them and scaled up, so zooming in further keeps the raster about the viewport's size.
+     */
+    private static final int RASTER_MAX_DEPTH = 10;
+    /** Number of threads decoding the tiles of a raster at once. */
+    private static final int TILE_DECODE_THREADS = Runtime.getRuntime().availableProcessors();
+    /** Most tiles queued for prefetching at once; a 4x4 raster has up to 100 neighbors. */
+    private static final int PREFETCH_QUEUE_CAPACITY = 256;
+    /** Budget for stitched tile mosaics, without the route, at 4 bytes per pixel. */
+    private static final long MOSAIC_CACHE_BYTES = 128L * 1024 * 1024;
+    /** How rasters are encoded: PNG at PNG_DEFLATE_LEVEL, or JPEG at JPEG_QUALITY. JPEG is
+     * several times smaller, but blurs the text and thin lines of the tiles. */
+    private static final RasterEncoder.Format RASTER_FORMAT = RasterEncoder.Format.PNG;
+    /** From 0 (fastest) to 9 (smallest). RasterBenchmark compares the levels. */
+    private static final int PNG_DEFLATE_LEVEL = RasterEncoder.DEFAULT_PNG_LEVEL;
+    private static final float JPEG_QUALITY = 0.85f;
+    /** Budget for finished, Base64 encoded raster images kept in memory. */
+    private static final long RASTER_CACHE_BYTES = 64L * 1024 * 1024;
+    /** Budget for found routes and their directions, roughly in bytes. Many clicks snap to
+     * the same vertices, so popular trips are found once. */
+    private static final long ROUTE_CACHE_BYTES = 16L * 1024 * 1024;
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /** Number of landmarks for algorithm=alt routes. More landmarks give a tighter heuristic
+     * but take 4 bytes per vertex each, and make every heuristic evaluation slower. */
+    private static final int NUM_LANDMARKS = 16;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -56,6 +102,20 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
+    /**
+     * Raster requests may also pick how the image is delivered with mode=stitched (the
+     * default: one Base64 encoded image of all the tiles in the response) or mode=tiles (no
+     * image; the response lists tile_urls, served by /tiles/depth/x/y.png, which browsers
+     * can fetch in parallel and cache).
+     **/
+    private static final String RASTER_MODE_PARAM = "mode";
+    private static final String RASTER_MODE_STITCHED = "stitched";
+    private static final String RASTER_MODE_TILES = "tiles";
+    /** How long browsers and proxies may reuse a tile served by /tiles without asking. */
+    private static final int TILE_MAX_AGE_SECONDS = 30 * 24 * 60 * 60;
+    /** Budget for the encoded tiles served by /tiles and their ETags, so that overzoomed and
+     * rendered tiles are encoded once, and a revalidation is a cache lookup. */
+    private static final long TILE_RESPONSE_CACHE_BYTES = 16L * 1024 * 1024;
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
@@ -64,6 +124,75 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Route requests may also name the search to use, e.g. algorithm=bidirectional_astar.
+     * Without it, the server uses contraction hierarchies if a hierarchy file (written by
+     * ContractionHierarchy.main) sits next to the OSM file, and DEFAULT_ROUTE_ALGORITHM
+     * otherwise.
+     **/
+    private static final String ROUTE_ALGORITHM_PARAM = "algorithm";
+    /**
+     * Route, raster and clear_route requests identify the client whose route to use by the
+     * session token that its first route request returned, passed as session=token or in the
+     * ROUTE_SESSION_COOKIE cookie. Requests without a live token have no route.
+     **/
+    private static final String ROUTE_SESSION_PARAM = "session";
+    private static final String ROUTE_SESSION_COOKIE = "route_session";
+    /** How long a client's route is kept after its last request. */
+    private static final int ROUTE_SESSION_TTL_SECONDS = 30 * 60;
+    /** Budget for the routes of the clients, by estimated bytes; a session takes a few KB. */
+    private static final long ROUTE_SESSIONS_BYTES = 32L * 1024 * 1024;
+    private static final Router.Algorithm DEFAULT_ROUTE_ALGORITHM = Router.Algorithm.ASTAR;
+    /**
+     * Batch route requests are POSTed to ROUTE_BATCH_PATH, with a JSON array of trips as the
+     * body, each an object with the parameters of a route request, e.g.
+     * [{"start_lon": -122.26, "start_lat": 37.87, "end_lon": -122.25, "end_lat": 37.86}].
+     * The algorithm may be picked as for /route. A batch holds at most MAX_ROUTE_BATCH_SIZE
+     * trips, which keeps it to a few seconds of routing.
+     **/
+    private static final String ROUTE_BATCH_PATH = "/route/batch";
+    private static final int MAX_ROUTE_BATCH_SIZE = 1000;
+    /** Number of threads finding the routes of a batch at once. */
+    private static final int ROUTE_BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Whether to limit the concurrent requests of each heavy endpoint, see
+     * AdmissionController. Run with -Dadmission=false to turn it off, e.g. for LoadTest. */
+    private static final boolean ADMISSION_CONTROL =
+            !"false".equals(System.getProperty("admission"));
+    private static final int MAX_CONCURRENT_RASTERS = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+    private static final int MAX_QUEUED_RASTERS = 16;
+    private static final int MAX_CONCURRENT_ROUTES = 2 * Runtime.getRuntime()
+            .availableProcessors();
+    private static final int MAX_QUEUED_ROUTES = 16;
+    /** A batch routes on all ROUTE_BATCH_THREADS at once, so batches have an admission limit
+     * of their own and run one at a time, next to at most MAX_CONCURRENT_ROUTES single routes;
+     * a batch counts as one request whatever its number of trips. Batches waiting or running
+     * hold server threads like other requests, so SERVER_MAX_THREADS counts them too. */
+    private static final int MAX_CONCURRENT_ROUTE_BATCHES = 1;
+    private static final int MAX_QUEUED_ROUTE_BATCHES = 4;
+    private static final int MAX_CONCURRENT_TILES = 16;
+    private static final int MAX_QUEUED_TILES = 32;
+    /** Server threads kept for the cheap requests, like /search and the static files, and for
+     * Jetty's own acceptor and selector threads. */
+    private static final int SERVER_RESERVED_THREADS = 32;
+    /**
+     * Server threads. Requests over an endpoint's admission limit wait on a server thread, so
+     * the pool holds the limits and queues of the heavy endpoints, which grow with the number
+     * of cores, plus SERVER_RESERVED_THREADS. main checks this against the limits actually set.
+     */
+    private static final int SERVER_MAX_THREADS = MAX_CONCURRENT_RASTERS + MAX_QUEUED_RASTERS
+            + MAX_CONCURRENT_ROUTES + MAX_QUEUED_ROUTES
+            + MAX_CONCURRENT_ROUTE_BATCHES + MAX_QUEUED_ROUTE_BATCHES
+            + MAX_CONCURRENT_TILES + MAX_QUEUED_TILES + SERVER_RESERVED_THREADS;
+    private static final int SERVER_MIN_THREADS = 8;
+    private static final int SERVER_IDLE_TIMEOUT_MILLIS = 30000;
+    /** Longest a request waits for its turn before the server answers 503. */
+    private static final long ADMISSION_MAX_WAIT_MILLIS = 2000;
+    /** Retry-After of the 503 responses to requests that were not admitted. */
+    private static final int ADMISSION_RETRY_AFTER_SECONDS = 1;
+    /** Request attribute holding the endpoint a request was admitted to. */
+    private static final String ADMITTED_ATTRIBUTE = "admitted_endpoint";
 
     /**
      * The result of rastering must be a map containing all of the
@@ -73,8 +202,34 @@ public class MapServer {
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
     private static Rasterer rasterer;
+    private static LruCache<String, BufferedImage> tileCache;
+    private static TileSource tileSource;
+    private static TileMosaic tileMosaic;
+    /** Draws the tiles missing from tileSource from the graph. */
+    private static RoadTileRenderer roadRenderer;
+    private static TilePrefetcher prefetcher;
+    private static RasterEncoder rasterEncoder;
+    /** Stitched tiles by plan. These do not depend on the route, so they outlive it. */
+    private static LruCache<RasterPlan, BufferedImage> mosaicCache;
+    /** Finished rasters by plan and the version of the route drawn over them. Clients without
+     * a route share the rasters without one. */
+    private static LruCache<RasterKey, RasterImage> rasterCache;
+    /** Encoded tiles served by /tiles, by file name. */
+    private static LruCache<String, EncodedTile> tileResponseCache;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** Routes by snapped endpoints and algorithm. The graph is loaded once, in initialize, so
+     * the vertex indices of the keys always refer to it. */
+    private static LruCache<RouteKey, FoundRoute> routeCache;
+    private static ForkJoinPool routeBatchPool;
+    private static RouteSessions routeSessions;
+    /* Concurrent identical requests share one computation: rasters by plan and route
+     * version, mosaics by plan, and routes by snapped endpoints and algorithm. */
+    private static SingleFlight<RasterKey, RasterImage> rasterFlights;
+    private static SingleFlight<RasterPlan, BufferedImage> mosaicFlights;
+    private static SingleFlight<RouteKey, FoundRoute> routeFlights;
+    /** Admission limits of the heavy endpoints, or null if ADMISSION_CONTROL is off. */
+    private static AdmissionController admission;
+    private static Router.Algorithm defaultAlgorithm;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,12 +239,68 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        graph = new GraphDB(OSM_DB_PATH, NUM_LANDMARKS);
+        graph.setContractionHierarchy(ContractionHierarchy.read(
+                new File(OSM_DB_PATH + ContractionHierarchy.EXTENSION), graph));
+        defaultAlgorithm = graph.contractionHierarchy() != null
+                ? Router.Algorithm.CH : DEFAULT_ROUTE_ALGORITHM;
+        routeCache = new LruCache<>(ROUTE_CACHE_BYTES,
+                found -> 64 + 8L * found.route.size() + 2L * found.directions.length());
+        routeBatchPool = new ForkJoinPool(ROUTE_BATCH_THREADS);
+        rasterer = new Rasterer(RASTER_MAX_DEPTH);
+        tileCache = new LruCache<>(TILE_CACHE_BYTES,
+                img -> 4L * img.getWidth() * img.getHeight());
+        TileArchive archive = TileArchive.open(new File(TILE_ARCHIVE_PATH), new File(IMG_ROOT));
+        tileSource = archive != null ? archive : new TileDirectory(IMG_ROOT);
+        roadRenderer = new RoadTileRenderer(graph, ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON,
+                ROOT_LRLAT);
+        tileMosaic = new TileMosaic(tileSource, tileCache, TILE_DECODE_THREADS, roadRenderer);
+        prefetcher = new TilePrefetcher(tileMosaic, rasterer.maxDepth(),
+                PREFETCH_QUEUE_CAPACITY);
+        mosaicCache = new LruCache<>(MOSAIC_CACHE_BYTES,
+                img -> 4L * img.getWidth() * img.getHeight());
+        rasterEncoder = RASTER_FORMAT == RasterEncoder.Format.PNG
+                ? RasterEncoder.png(PNG_DEFLATE_LEVEL) : RasterEncoder.jpeg(JPEG_QUALITY);
+        rasterCache = new LruCache<>(RASTER_CACHE_BYTES, img -> img.encodedImage.length);
+        tileResponseCache = new LruCache<>(TILE_RESPONSE_CACHE_BYTES,
+                tile -> 64 + tile.png.remaining());
+        routeSessions = new RouteSessions(ROUTE_SESSION_TTL_SECONDS * 1000L,
+                ROUTE_SESSIONS_BYTES);
+        rasterFlights = new SingleFlight<>();
+        mosaicFlights = new SingleFlight<>();
+        routeFlights = new SingleFlight<>();
+        if (ADMISSION_CONTROL) {
+            admission = new AdmissionController();
+            admission.limit("/raster", MAX_CONCURRENT_RASTERS, MAX_QUEUED_RASTERS,
+                    ADMISSION_MAX_WAIT_MILLIS);
+            admission.limit("/route", MAX_CONCURRENT_ROUTES, MAX_QUEUED_ROUTES,
+                    ADMISSION_MAX_WAIT_MILLIS);
+            admission.limit(ROUTE_BATCH_PATH, MAX_CONCURRENT_ROUTE_BATCHES,
+                    MAX_QUEUED_ROUTE_BATCHES, ADMISSION_MAX_WAIT_MILLIS);
+            admission.limit("/tiles", MAX_CONCURRENT_TILES, MAX_QUEUED_TILES,
+                    ADMISSION_MAX_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Throws IllegalStateException if the requests admission lets run or wait at once could
+     * take more than SERVER_MAX_THREADS - SERVER_RESERVED_THREADS server threads, which would
+     * starve the cheap requests. admission may be null if admission control is off.
+     */
+    static void checkServerThreads(AdmissionController admission) {
+        if (admission != null
+                && admission.maxHeldThreads() > SERVER_MAX_THREADS - SERVER_RESERVED_THREADS) {
+            throw new IllegalStateException("The admission limits let "
+                    + admission.maxHeldThreads() + " requests hold a server thread, but only "
+                    + (SERVER_MAX_THREADS - SERVER_RESERVED_THREADS) + " of the "
+                    + SERVER_MAX_THREADS + " server threads are meant for them.");
+        }
     }
 
     public static void main(String[] args) {
         initialize();
+        checkServerThreads(admission);
+        threadPool(SERVER_MAX_THREADS, SERVER_MIN_THREADS, SERVER_IDLE_TIMEOUT_MILLIS);
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -99,23 +310,61 @@ public class MapServer {
             response.header("Access-Control-Allow-Headers", "*");
         });
 
+        /* Hold back the requests over their endpoint's limit, or turn them away if too many are
+         * waiting already. */
+        if (admission != null) {
+            before((req, res) -> {
+                String endpoint = getEndpoint(req.pathInfo());
+                if (!admission.acquire(endpoint)) {
+                    res.header("Retry-After", String.valueOf(ADMISSION_RETRY_AFTER_SECONDS));
+                    halt(503, "Too many " + endpoint + " requests, please retry later.");
+                }
+                req.attribute(ADMITTED_ATTRIBUTE, endpoint);
+            });
+            afterAfter((req, res) -> {
+                String endpoint = req.attribute(ADMITTED_ATTRIBUTE);
+                if (endpoint != null) {
+                    admission.release(endpoint);
+                }
+            });
+        }
+
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            String mode = req.queryParams(RASTER_MODE_PARAM);
+            if (mode != null && !RASTER_MODE_TILES.equals(mode)
+                    && !RASTER_MODE_STITCHED.equals(mode)) {
+                halt(HALT_RESPONSE, "Unknown raster mode " + mode + ".");
+            }
+            /* plan() does almost all the work for this API call */
+            RasterPlan plan = rasterer.plan(params);
+            Map<String, Object> rasteredImgParams = plan.toMap();
             System.out.println(rasteredImgParams);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            RouteSessions.Route route = routeSessions.get(getSessionToken(req));
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+            if (rasterSuccess && RASTER_MODE_TILES.equals(mode)) {
+                rasteredImgParams.put("tile_urls", getTileUrls(plan));
+                rasteredImgParams.put("raster_width", plan.getNumCols() * TILE_SIZE);
+                rasteredImgParams.put("raster_height", plan.getNumRows() * TILE_SIZE);
+                rasteredImgParams.put("route_polylines", getRoutePolylines(graph,
+                        plan, plan.getNumCols() * TILE_SIZE, plan.getNumRows() * TILE_SIZE,
+                        route.nodes()));
+            } else if (rasterSuccess) {
+                RasterImage img = getRasterImage(plan, route);
+                if (img != null) {
+                    rasteredImgParams.put("raster_width", img.width);
+                    rasteredImgParams.put("raster_height", img.height);
+                    rasteredImgParams.put("raster_mime_type", rasterEncoder.mimeType());
+                    writeRasterResponse(rasteredImgParams, img.encodedImage,
+                            res.raw().getOutputStream());
+                    prefetcher.prefetch(plan);
+                    return "";
+                }
             }
 
             /* Encode response to Json */
@@ -123,14 +372,45 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the endpoint for single tiles, e.g. /tiles/2/3/1.png. The png is sent as it is
+         * in the tile source, with headers that let the browser cache it. */
+        get("/tiles/:depth/:x/:file", (req, res) -> {
+            int[] tile = parseTile(req.params(":depth"), req.params(":x"), req.params(":file"));
+            EncodedTile encoded = tile == null ? null : getEncodedTile(tile[0], tile[1], tile[2]);
+            if (encoded == null) {
+                halt(404, "No such tile.");
+            }
+            res.header("Cache-Control", "public, max-age=" + TILE_MAX_AGE_SECONDS);
+            res.header("ETag", encoded.etag);
+            String ifNoneMatch = req.headers("If-None-Match");
+            if (ifNoneMatch != null
+                    && (ifNoneMatch.contains(encoded.etag) || ifNoneMatch.equals("*"))) {
+                res.status(304);
+                return "";
+            }
+            ByteBuffer png = encoded.png.duplicate();
+            res.type("image/png");
+            res.raw().setContentLength(png.remaining());
+            WritableByteChannel out = Channels.newChannel(res.raw().getOutputStream());
+            while (png.hasRemaining()) {
+                out.write(png);
+            }
+            return "";
+        });
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            RouteKey key = getRouteKey(params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), getRouteAlgorithm(req));
+            FoundRoute found = getRoute(key);
+            List<Long> route = found.route;
+            String token = routeSessions.set(getSessionToken(req), route);
+            res.cookie("/", ROUTE_SESSION_COOKIE, token, ROUTE_SESSION_TTL_SECONDS, false, true);
+            String directions = found.directions;
             Map<String, Object> routeParams = new HashMap<>();
+            routeParams.put("session", token);
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
@@ -138,9 +418,29 @@ public class MapServer {
             return gson.toJson(routeParams);
         });
 
-        /* Define the API endpoint for clearing the current route. */
+        /* Define the batch routing endpoint for HTTP POST requests. The routes are found in
+         * parallel, and returned in the order of the trips; they do not change the client's
+         * route. */
+        post(ROUTE_BATCH_PATH, (req, res) -> {
+            double[][] trips = getTrips(req.body());
+            FoundRoute[] found = findRoutes(trips, getRouteAlgorithm(req));
+            List<Map<String, Object>> routes = new ArrayList<>();
+            for (FoundRoute f : found) {
+                Map<String, Object> routeParams = new LinkedHashMap<>();
+                routeParams.put("routing_success", !f.route.isEmpty());
+                routeParams.put("route", f.route);
+                routeParams.put("directions_success", f.directions.length() > 0);
+                routeParams.put("directions", f.directions);
+                routes.add(routeParams);
+            }
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(routes);
+        });
+
+        /* Define the API endpoint for clearing the client's route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            routeSessions.clear(getSessionToken(req));
             return true;
         });
 
@@ -160,6 +460,12 @@ public class MapServer {
             }
         });
 
+        /* Define the API endpoint for server statistics. */
+        get("/stats", (req, res) -> {
+            Gson gson = new Gson();
+            return gson.toJson(getStats());
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -194,83 +500,456 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
-     * In Spring 2016, students had to do this on their own, but in 2017,
-     * we have made this into provided code since it was just a bit too low level.
+     * Returns the routing algorithm named by the request, or the default one if it names none.
+     * Halts the request if the named algorithm is unknown or unavailable.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+    private static Router.Algorithm getRouteAlgorithm(spark.Request req) {
+        String name = req.queryParams(ROUTE_ALGORITHM_PARAM);
+        if (name == null) {
+            return defaultAlgorithm;
+        }
+        Router.Algorithm algorithm = null;
+        try {
+            algorithm = Router.Algorithm.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing algorithm " + name + ".");
+        }
+        if (algorithm == Router.Algorithm.CH && graph.contractionHierarchy() == null) {
+            halt(HALT_RESPONSE, "No contraction hierarchy loaded.");
+        }
+        return algorithm;
+    }
+
+    /** Returns the /tiles URLs of the tiles in plan, laid out like its render grid. */
+    private static String[][] getTileUrls(RasterPlan plan) {
+        String[][] urls = new String[plan.getNumRows()][plan.getNumCols()];
+        for (int r = 0; r < plan.getNumRows(); r += 1) {
+            for (int c = 0; c < plan.getNumCols(); c += 1) {
+                urls[r][c] = "/tiles/" + plan.getDepth() + "/" + (plan.getMinX() + c) + "/"
+                        + (plan.getMinY() + r) + ".png";
             }
         }
+        return urls;
+    }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
+    /**
+     * Returns the png of a tile as it is in the tile source, or for the virtual depths past
+     * the tile images and the tiles missing from the source, the tile TileMosaic makes from
+     * its depth 7 ancestor or the road network, encoded as a png. Returns null if there is no
+     * such tile.
+     */
+    private static ByteBuffer readTile(int depth, int x, int y) {
+        if (depth > rasterer.maxDepth()) {
+            return null;
+        } else if (depth < Rasterer.N_DEPTH_LEVELS) {
+            ByteBuffer png = tileSource.read(depth, x, y);
+            if (png != null) {
+                return png;
+            }
+        }
+        BufferedImage img = tileMosaic.getTile(depth, x, y);
+        if (img == null) {
+            return null;
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            RasterEncoder.png(RasterEncoder.DEFAULT_PNG_LEVEL).encode(img, os);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return ByteBuffer.wrap(os.toByteArray());
+    }
 
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+    /**
+     * Returns the PNG of a tile with its ETag, from the tile response cache if possible, or
+     * null if there is no such tile. The ETag is derived from the bytes served, so that it
+     * changes along with them whether the tile was read from the source or drawn from the road
+     * network.
+     */
+    private static EncodedTile getEncodedTile(int depth, int x, int y) {
+        return tileResponseCache.get(TileSource.fileName(depth, x, y), name -> {
+            ByteBuffer png = readTile(depth, x, y);
+            if (png == null) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(png.duplicate());
+            return new EncodedTile(png.asReadOnlyBuffer(), "\"" + Long.toHexString(crc.getValue())
+                    + "-" + Integer.toHexString(png.remaining()) + "\"");
+        });
+    }
+
+    /**
+     * Returns the depth, x and y of the tile named by the path parameters of a /tiles request,
+     * or null if they are not numbers or not a tile (see TileSource.isTile).
+     */
+    private static int[] parseTile(String depth, String x, String file) {
+        if (!file.endsWith(".png")) {
+            return null;
+        }
+        try {
+            int d = Integer.parseInt(depth);
+            int tx = Integer.parseInt(x);
+            int ty = Integer.parseInt(file.substring(0, file.length() - ".png".length()));
+            if (!TileSource.isTile(d, tx, ty)) {
+                return null;
+            }
+            return new int[]{d, tx, ty};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the JSON of rasteredImgParams with the Base64 encoded image added as
+     * b64_encoded_image_data. The image is written as it is, rather than turned into a String
+     * and escaped by Gson, since Base64 needs no escaping.
+     */
+    private static void writeRasterResponse(Map<String, Object> rasteredImgParams,
+                                            byte[] encodedImage, OutputStream out)
+            throws IOException {
+        String json = new Gson().toJson(rasteredImgParams);
+        out.write(json.substring(0, json.length() - 1).getBytes(StandardCharsets.UTF_8));
+        out.write(",\"b64_encoded_image_data\":\"".getBytes(StandardCharsets.US_ASCII));
+        out.write(encodedImage);
+        out.write("\"}".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** A tile as served by /tiles. */
+    private static class EncodedTile {
+        /** The PNG, which every response reads through a duplicate. */
+        private final ByteBuffer png;
+        private final String etag;
+
+        EncodedTile(ByteBuffer png, String etag) {
+            this.png = png;
+            this.etag = etag;
+        }
+    }
+
+    /** A raster that has been drawn, encoded by rasterEncoder and Base64 encoded. */
+    static class RasterImage {
+        /** The Base64 encoding, in ASCII. */
+        private final byte[] encodedImage;
+        private final int width;
+        private final int height;
+
+        RasterImage(byte[] encodedImage, int width, int height) {
+            this.encodedImage = encodedImage;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** Key of the raster cache: the tiles of a raster and the route drawn over them. */
+    private static class RasterKey {
+        private final RasterPlan plan;
+        private final long routeVersion;
+
+        RasterKey(RasterPlan plan, long routeVersion) {
+            this.plan = plan;
+            this.routeVersion = routeVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RasterKey && plan.equals(((RasterKey) o).plan)
+                    && routeVersion == ((RasterKey) o).routeVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * plan.hashCode() + Long.hashCode(routeVersion);
+        }
+    }
+
+    /** Key of the routes cached and in flight: the snapped endpoints and the algorithm. */
+    static class RouteKey {
+        private final int s;
+        private final int t;
+        private final Router.Algorithm algorithm;
+
+        RouteKey(int s, int t, Router.Algorithm algorithm) {
+            this.s = s;
+            this.t = t;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RouteKey && s == ((RouteKey) o).s && t == ((RouteKey) o).t
+                    && algorithm == ((RouteKey) o).algorithm;
         }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+        @Override
+        public int hashCode() {
+            return 31 * (31 * s + t) + algorithm.hashCode();
+        }
+    }
+
+    /** A route found by this MapServer, with its directions as HTML. */
+    static class FoundRoute {
+        private final List<Long> route;
+        private final String directions;
+
+        FoundRoute(List<Long> route, String directions) {
+            this.route = route;
+            this.directions = directions;
+        }
+    }
+
+    /** Returns the key of the route between the vertices closest to the given points. */
+    static RouteKey getRouteKey(double startLon, double startLat, double endLon,
+                                        double endLat, Router.Algorithm algorithm) {
+        return new RouteKey(graph.index(graph.closest(startLon, startLat)),
+                graph.index(graph.closest(endLon, endLat)), algorithm);
+    }
+
+    /**
+     * Returns the route and directions for key, from the route cache if possible. Concurrent
+     * misses on the same key find the route once.
+     */
+    static FoundRoute getRoute(RouteKey key) {
+        return routeFlights.run(key, () -> routeCache.get(key, MapServer::findRoute));
+    }
 
+    /** Finds the route and directions for key. */
+    private static FoundRoute findRoute(RouteKey key) {
+        List<Long> route = Router.shortestPath(graph, key.s, key.t, key.algorithm);
+        return new FoundRoute(route, getDirectionsText(route));
+    }
+
+    /**
+     * Returns the trips of a batch route request body, each as start longitude, start latitude,
+     * end longitude and end latitude. Halts if the body is not a JSON array of trips.
+     */
+    private static double[][] getTrips(String body) {
+        JsonArray trips = null;
         try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
+            JsonElement json = new JsonParser().parse(body);
+            if (json.isJsonArray()) {
+                trips = json.getAsJsonArray();
+            }
+        } catch (JsonParseException e) {
             e.printStackTrace();
         }
+        if (trips == null) {
+            halt(HALT_RESPONSE, "Request failed - provide a JSON array of trips.");
+        } else if (trips.size() > MAX_ROUTE_BATCH_SIZE) {
+            halt(HALT_RESPONSE, "Request failed - at most " + MAX_ROUTE_BATCH_SIZE
+                    + " trips per batch.");
+        }
+        String[] fields = {"start_lon", "start_lat", "end_lon", "end_lat"};
+        double[][] result = new double[trips.size()][fields.length];
+        for (int i = 0; i < result.length; i += 1) {
+            JsonElement trip = trips.get(i);
+            for (int j = 0; j < fields.length; j += 1) {
+                JsonElement value = trip.isJsonObject() ? trip.getAsJsonObject().get(fields[j])
+                        : null;
+                if (value == null || !value.isJsonPrimitive()
+                        || !value.getAsJsonPrimitive().isNumber()) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - trip " + i + " needs a number "
+                            + "for " + fields[j] + ".");
+                }
+                result[i][j] = value.getAsDouble();
+            }
+        }
+        return result;
+    }
 
+    /**
+     * Finds the routes of trips, as returned by getTrips, on ROUTE_BATCH_THREADS threads. Each
+     * thread takes the next trip not taken yet, so slow routes do not hold up the others, and
+     * searches all of its trips in one workspace. Routes are taken from the route cache when
+     * possible, and cached.
+     */
+    private static FoundRoute[] findRoutes(double[][] trips, Router.Algorithm algorithm)
+            throws InterruptedException, ExecutionException {
+        FoundRoute[] found = new FoundRoute[trips.length];
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            SearchWorkspace ws = graph.acquireWorkspace();
+            try {
+                for (int i = next.getAndIncrement(); i < trips.length;
+                     i = next.getAndIncrement()) {
+                    RouteKey key = getRouteKey(trips[i][0], trips[i][1], trips[i][2],
+                            trips[i][3], algorithm);
+                    found[i] = routeCache.get(key);
+                    if (found[i] == null) {
+                        ws.reset();
+                        List<Long> route = Router.shortestPath(graph, ws, key.s, key.t,
+                                algorithm);
+                        found[i] = new FoundRoute(route, getDirectionsText(route));
+                        routeCache.put(key, found[i]);
+                    }
+                }
+            } finally {
+                graph.releaseWorkspace(ws);
+            }
+            return null;
+        };
+        int workers = Math.min(ROUTE_BATCH_THREADS, trips.length);
+        /* get() rethrows the exceptions of the workers, and makes their routes visible. */
+        for (Future<Void> f : routeBatchPool.invokeAll(Collections.nCopies(workers, worker))) {
+            f.get();
+        }
+        return found;
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
+    /**
+     * Returns the encoded raster for plan with route drawn over it, from the raster cache if it
+     * has been drawn before. Returns null, and caches nothing, if plan failed or the raster
+     * could not be encoded. Requests for the same raster while it is being drawn wait for it
+     * rather than drawing it again.
+     */
+    static RasterImage getRasterImage(RasterPlan plan, RouteSessions.Route route) {
+        if (!plan.isSuccess()) {
+            return null;
+        }
+        RasterKey rasterKey = new RasterKey(plan, route.version());
+        return rasterFlights.run(rasterKey, () -> rasterCache.get(rasterKey, key -> {
+            BufferedImage img = drawRaster(plan, route.nodes());
             try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
+                return new RasterImage(rasterEncoder.encodeBase64(img), img.getWidth(),
+                        img.getHeight());
+            } catch (IOException e) {
                 e.printStackTrace();
+                return null;
+            }
+        }));
+    }
+
+    /** Returns the counters of the caches and other shared parts of the server, by name. */
+    static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tile_cache", tileCache.stats());
+        stats.put("mosaic_cache", mosaicCache.stats());
+        stats.put("raster_cache", rasterCache.stats());
+        stats.put("tile_response_cache", tileResponseCache.stats());
+        stats.put("route_cache", routeCache.stats());
+        stats.put("raster_encoder", rasterEncoder.stats());
+        stats.put("prefetch", prefetcher.stats());
+        stats.put("route_sessions", routeSessions.stats());
+        if (admission != null) {
+            stats.put("admission", admission.stats());
+        }
+        Map<String, Object> flights = new LinkedHashMap<>();
+        flights.put("raster", rasterFlights.stats());
+        flights.put("mosaic", mosaicFlights.stats());
+        flights.put("route", routeFlights.stats());
+        stats.put("single_flight", flights);
+        stats.put("road_renderer", roadRenderer.stats());
+        return stats;
+    }
+
+    /** Returns the endpoint of a request path, i.e. its first segment, e.g. /tiles for
+     * /tiles/2/3/1.png, except that ROUTE_BATCH_PATH is an endpoint of its own. */
+    private static String getEndpoint(String path) {
+        if (path == null) {
+            return "";
+        } else if (path.equals(ROUTE_BATCH_PATH)) {
+            return ROUTE_BATCH_PATH;
+        }
+        int end = path.indexOf('/', 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * Returns the session token sent with req, as a parameter or else as a cookie, or null if
+     * there is none.
+     */
+    private static String getSessionToken(spark.Request req) {
+        String token = req.queryParams(ROUTE_SESSION_PARAM);
+        return token != null ? token : req.cookie(ROUTE_SESSION_COOKIE);
+    }
+
+    /**
+     * Returns the raster for plan, with route drawn over the tiles. The tiles come from the
+     * mosaic cache, which does not depend on the route, so a new route only costs drawing the
+     * route and encoding, not stitching the tiles again.
+     */
+    private static BufferedImage drawRaster(RasterPlan plan, List<Long> route) {
+        BufferedImage mosaic = getMosaic(plan);
+        BufferedImage img = mosaic;
+
+        /* If there is a route, draw it over a copy of the cached mosaic. */
+        List<int[]> polylines = getRoutePolylines(graph, plan, mosaic.getWidth(),
+                mosaic.getHeight(), route);
+        if (!polylines.isEmpty()) {
+            img = new BufferedImage(mosaic.getWidth(), mosaic.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = img.createGraphics();
+            g2d.drawImage(mosaic, 0, 0, null);
+            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            for (int[] polyline : polylines) {
+                for (int i = 2; i < polyline.length; i += 2) {
+                    g2d.drawLine(polyline[i - 2], polyline[i - 1], polyline[i], polyline[i + 1]);
+                }
             }
+            g2d.dispose();
         }
-        return tileImg;
+        return img;
+    }
+
+    /** Returns the tiles of plan stitched into one image, from the mosaic cache if possible. */
+    private static BufferedImage getMosaic(RasterPlan plan) {
+        return mosaicFlights.run(plan, () -> mosaicCache.get(plan, tileMosaic::draw));
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Returns the parts of route, a list of vertices of g, that cross the raster of plan, in the
+     * pixel coordinates of a width by height image of it. Each part is a polyline of
+     * consecutive route segments that come within a stroke width of the raster, flattened as
+     * x0, y0, x1, y1, ...; segments wholly outside of it are left out, so they are neither
+     * drawn nor sent to the client.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    static List<int[]> getRoutePolylines(GraphDB g, RasterPlan plan, int width, int height,
+                                         List<Long> route) {
+        List<int[]> polylines = new ArrayList<>();
+        if (route == null || route.size() < 2) {
+            return polylines;
+        }
+        double ullon = plan.getUllon();
+        double ullat = plan.getUllat();
+        double xScale = width / (plan.getLrlon() - ullon);
+        double yScale = height / (ullat - plan.getLrlat());
+        double margin = ROUTE_STROKE_WIDTH_PX;
+
+        int[] points = new int[2 * route.size()];
+        int n = 0;
+        double prevX = 0, prevY = 0;
+        boolean first = true;
+        for (long id : route) {
+            double x = (g.lon(id) - ullon) * xScale;
+            double y = (ullat - g.lat(id)) * yScale;
+            if (!first) {
+                boolean visible = Math.max(prevX, x) >= -margin
+                        && Math.min(prevX, x) <= width + margin
+                        && Math.max(prevY, y) >= -margin
+                        && Math.min(prevY, y) <= height + margin;
+                if (visible) {
+                    if (n == 0) {
+                        points[n++] = (int) prevX;
+                        points[n++] = (int) prevY;
+                    }
+                    points[n++] = (int) x;
+                    points[n++] = (int) y;
+                } else if (n > 0) {
+                    polylines.add(Arrays.copyOf(points, n));
+                    n = 0;
+                }
+            }
+            prevX = x;
+            prevY = y;
+            first = false;
+        }
+        if (n > 0) {
+            polylines.add(Arrays.copyOf(points, n));
+        }
+        return polylines;
     }
 
 
@@ -334,10 +1013,10 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route found by this MapServer and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
+    private static String getDirectionsText(List<Long> route) {
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
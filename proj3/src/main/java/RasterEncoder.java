@@ -0,0 +1,146 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes rasters for the /raster response, as PNG with a given deflate level or as JPEG with
+ * a given quality. The encoded image goes straight through a Base64 encoding stream into a
+ * buffer that each thread reuses, and is written to a memory cached image stream, not the
+ * temporary file ImageIO.write uses by default.
+ *
+ * The encoder counts the rasters it has encoded, the time it took and the bytes it produced,
+ * which MapServer reports on /stats.
+ */
+public class RasterEncoder {
+    /** The image formats a raster can be encoded in. */
+    public enum Format {
+        PNG("png", "image/png"), JPEG("jpeg", "image/jpeg");
+
+        private final String formatName;
+        private final String mimeType;
+
+        Format(String formatName, String mimeType) {
+            this.formatName = formatName;
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * The deflate level ImageIO's PNG writer uses when none is given, on JDK 9 and later. Java
+     * 8's writer ignores the level and always deflates at 9.
+     */
+    static final int DEFAULT_PNG_LEVEL = 4;
+    /** Buffers that have grown past this many bytes are not kept for reuse. */
+    private static final int MAX_REUSED_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    private final Format format;
+    /** ImageIO's compression quality, from 0 (smallest) to 1 (best), or -1 for its default. */
+    private final float compressionQuality;
+    private final ThreadLocal<ByteArrayOutputStream> buffers =
+            ThreadLocal.withInitial(ByteArrayOutputStream::new);
+    private final AtomicLong encodes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    private RasterEncoder(Format format, float compressionQuality) {
+        this.format = format;
+        this.compressionQuality = compressionQuality;
+    }
+
+    /**
+     * Returns an encoder for PNGs with the given deflate level, from 0 (no compression, the
+     * fastest) to 9 (the smallest).
+     */
+    static RasterEncoder png(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Deflate levels are from 0 to 9, not " + level);
+        }
+        /* ImageIO's PNG writer uses the deflate level (int) (9 * (1 - quality)) on JDK 9 and
+         * later. Java 8's writer has no compression settings and deflates at level 9. */
+        return new RasterEncoder(Format.PNG, Math.max(0f, 1f - (level + 0.5f) / 9f));
+    }
+
+    /** Returns an encoder for JPEGs with the given quality, from 0 to 1. */
+    static RasterEncoder jpeg(float quality) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("JPEG quality is from 0 to 1, not " + quality);
+        }
+        return new RasterEncoder(Format.JPEG, quality);
+    }
+
+    Format format() {
+        return format;
+    }
+
+    /** Returns the MIME type of the encoded images, for the data URL in the front end. */
+    String mimeType() {
+        return format.mimeType;
+    }
+
+    /**
+     * Returns img encoded and then Base64 encoded, as ASCII bytes. The bytes are copied out of
+     * the calling thread's buffer, so they can be cached and written out later.
+     */
+    byte[] encodeBase64(BufferedImage img) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        try (OutputStream base64 = Base64.getEncoder().wrap(buffer)) {
+            encode(img, base64);
+        }
+        byte[] bytes = buffer.toByteArray();
+        if (buffer.size() > MAX_REUSED_BUFFER_BYTES) {
+            buffers.remove();
+        }
+        encodes.incrementAndGet();
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        encodedBytes.addAndGet(bytes.length);
+        return bytes;
+    }
+
+    /** Writes img to out in this encoder's format. out is not closed. */
+    void encode(BufferedImage img, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format.formatName).next();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            /* Java 8's PNG writer has no compression settings, so it keeps its default. */
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(compressionQuality);
+            }
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /** Returns the counters of the encoder, for reporting as JSON. */
+    Map<String, Object> stats() {
+        long n = encodes.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("format", format.formatName);
+        stats.put("encodes", n);
+        stats.put("mean_encode_ms", n == 0 ? 0.0 : encodeNanos.get() / 1e6 / n);
+        stats.put("mean_base64_bytes", n == 0 ? 0.0 : (double) encodedBytes.get() / n);
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return format == Format.PNG
+                ? "png level " + (int) (9 * (1 - compressionQuality))
+                : String.format("jpeg quality %.2f", compressionQuality);
+    }
+}
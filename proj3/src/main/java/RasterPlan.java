@@ -0,0 +1,145 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The immutable result of planning a raster: the depth of the tiles to draw, the inclusive
+ * ranges of their x and y indices at that depth, and the bounding box they cover together.
+ * Plans are plain values, so they can be shared between request threads and used as keys.
+ */
+public class RasterPlan {
+    /** The plan for a query box that does not intersect the map. */
+    static final RasterPlan INVALID = new RasterPlan(false, 0, 0, 0, -1, -1, 0, 0, 0, 0);
+
+    private final boolean success;
+    private final int depth;
+    private final int minX;
+    private final int minY;
+    private final int maxX;
+    private final int maxY;
+    private final double ullon;
+    private final double ullat;
+    private final double lrlon;
+    private final double lrlat;
+
+    RasterPlan(boolean success, int depth, int minX, int minY, int maxX, int maxY,
+               double ullon, double ullat, double lrlon, double lrlat) {
+        this.success = success;
+        this.depth = depth;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Returns the x index of the leftmost column of tiles. */
+    public int getMinX() {
+        return minX;
+    }
+
+    /** Returns the y index of the top row of tiles. */
+    public int getMinY() {
+        return minY;
+    }
+
+    /** Returns the x index of the rightmost column of tiles, inclusive. */
+    public int getMaxX() {
+        return maxX;
+    }
+
+    /** Returns the y index of the bottom row of tiles, inclusive. */
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public int getNumCols() {
+        return maxX - minX + 1;
+    }
+
+    public int getNumRows() {
+        return maxY - minY + 1;
+    }
+
+    public double getUllon() {
+        return ullon;
+    }
+
+    public double getUllat() {
+        return ullat;
+    }
+
+    public double getLrlon() {
+        return lrlon;
+    }
+
+    public double getLrlat() {
+        return lrlat;
+    }
+
+    /** Returns the file names of the tiles, row by row from the top left. */
+    public String[][] renderGrid() {
+        String[][] renderGrid = new String[getNumRows()][getNumCols()];
+        for (int i = 0; i < getNumRows(); i++) {
+            for (int j = 0; j < getNumCols(); j++) {
+                renderGrid[i][j] = "d" + depth + "_x" + (j + minX) + "_y" + (i + minY) + ".png";
+            }
+        }
+        return renderGrid;
+    }
+
+    /** Returns the plan in the form of Rasterer.getMapRaster's results. */
+    public Map<String, Object> toMap() {
+        Map<String, Object> results = new HashMap<>();
+        if (!success) {
+            results.put("render_grid", null);
+            results.put("raster_ul_lon", 0);
+            results.put("raster_ul_lat", 0);
+            results.put("raster_lr_lon", 0);
+            results.put("raster_lr_lat", 0);
+            results.put("depth", 0);
+            results.put("query_success", false);
+            return results;
+        }
+        results.put("render_grid", renderGrid());
+        results.put("raster_ul_lon", ullon);
+        results.put("raster_ul_lat", ullat);
+        results.put("raster_lr_lon", lrlon);
+        results.put("raster_lr_lat", lrlat);
+        results.put("depth", depth);
+        results.put("query_success", true);
+        return results;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RasterPlan)) {
+            return false;
+        }
+        RasterPlan p = (RasterPlan) o;
+        return success == p.success && depth == p.depth && minX == p.minX && minY == p.minY
+                && maxX == p.maxX && maxY == p.maxY;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((((Boolean.hashCode(success) * 31 + depth) * 31 + minX) * 31 + minY) * 31
+                + maxX) * 31 + maxY;
+    }
+
+    @Override
+    public String toString() {
+        return success ? String.format("d%d x[%d, %d] y[%d, %d]", depth, minX, maxX, minY, maxY)
+                : "invalid";
+    }
+}
@@ -1,4 +1,3 @@
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -9,21 +8,49 @@ import java.util.Map;
  */
 public class Rasterer {
 
-    private double[] lonDPPImageDepths;
-    private static final int N_DEPTH_LEVELS = 8;
-    private int depth;
-    private double numOfTilesAcrossDepth;
-
+    /** Number of depths there are tile images for, from 0 to 7. */
+    static final int N_DEPTH_LEVELS = 8;
+    /** Deepest virtual depth, at which a tile is cut from a single pixel of a depth 7 tile. */
+    static final int MAX_OVERZOOM_DEPTH = N_DEPTH_LEVELS - 1 + 8;
+    private final int numLevels;
+    /* Per-depth tables, indexed by depth and never modified after construction, so one
+     * Rasterer can plan rasters for any number of threads at once. */
+    private final double[] lonDPPImageDepths;
+    private final double[] numOfTilesAcrossDepth;
+    private final double[] xDistBetweenTiles;
+    private final double[] yDistBetweenTiles;
+
+    /** Plans rasters from the tile images only, at depths 0 to 7. */
     public Rasterer() {
-        lonDPPImageDepths = new double[N_DEPTH_LEVELS];
+        this(N_DEPTH_LEVELS - 1);
+    }
+
+    /**
+     * Plans rasters at depths 0 to maxDepth. Depths past 7 are virtual: TileMosaic cuts their
+     * tiles out of depth 7 tiles and scales them up, so zooming in past depth 7 still gives a
+     * raster about the size of the viewport.
+     */
+    public Rasterer(int maxDepth) {
+        if (maxDepth < 0 || maxDepth > MAX_OVERZOOM_DEPTH) {
+            throw new IllegalArgumentException("The deepest depth must be from 0 to "
+                    + MAX_OVERZOOM_DEPTH + ", not " + maxDepth);
+        }
+        numLevels = maxDepth + 1;
+        lonDPPImageDepths = new double[numLevels];
+        numOfTilesAcrossDepth = new double[numLevels];
+        xDistBetweenTiles = new double[numLevels];
+        yDistBetweenTiles = new double[numLevels];
         double lrlon = MapServer.ROOT_LRLON;
         double ullon = MapServer.ROOT_ULLON;
-        for (int i = 0; i < N_DEPTH_LEVELS; i++) {
+        for (int i = 0; i < numLevels; i++) {
             lonDPPImageDepths[i] = calculateLonDPP(lrlon, ullon, MapServer.TILE_SIZE);
             lrlon = lrlon - (lrlon - ullon) / 2 ;
+            numOfTilesAcrossDepth[i] = Math.pow(2, i);
+            xDistBetweenTiles[i] = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON)
+                    / numOfTilesAcrossDepth[i];
+            yDistBetweenTiles[i] = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT)
+                    / numOfTilesAcrossDepth[i];
         }
-        depth = N_DEPTH_LEVELS - 1;
-        numOfTilesAcrossDepth = Math.pow(2, depth);
     }
 
     /**
@@ -54,155 +81,96 @@ public class Rasterer {
      * "query_success" : Boolean, whether the query was able to successfully complete; don't
      *                    forget to set this to true on success! <br>
      */
+    public Map<String, Object> getMapRaster(Map<String, Double> params) {
+        return plan(params).toMap();
+    }
+
+    /** Returns the deepest depth that plans use. */
+    public int maxDepth() {
+        return numLevels - 1;
+    }
 
-    // Longitude is x coordinate, latitude is y coordinate
-    // d0 - 1
-    // d1 - 2
-    // d2 - 4
-    // d3 - 8
-    // d4 - 16
-    // d5 - 32
-    // d6 - 64
-    // d7 - 128
     /*
         Calculates longitudinal distance per pixel
      */
     private double calculateLonDPP(double lrlon, double ullon, double w) {
         return (lrlon - ullon) / w;
     }
+
     /*
         Calculates the correct depth for the query
      */
-
-    private void initializeDepthValues(double lonDPP) {
-        depth = N_DEPTH_LEVELS - 1;
-        for (int i = 0; i < N_DEPTH_LEVELS; i++) {
+    private int computeDepth(double lonDPP) {
+        for (int i = 0; i < numLevels; i++) {
             if (lonDPPImageDepths[i] <= lonDPP) {
-                depth = i;
-                break;
+                return i;
             }
         }
-        numOfTilesAcrossDepth = Math.pow(2, depth);
-    }
-
-    private double calculateXDistBetweenTiles() {
-        return (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / numOfTilesAcrossDepth;
-    }
-
-    private double calculateYDistBetweenTiles() {
-        return (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / numOfTilesAcrossDepth;
+        return numLevels - 1;
     }
 
-    private int computeRasterUllonXCoord(double queryBoxUllon) {
-        double xDistBetweenTiles = calculateXDistBetweenTiles();
+    private int computeRasterUllonXCoord(int depth, double queryBoxUllon) {
         if (queryBoxUllon < MapServer.ROOT_ULLON) {
             return 0;
         }
-        return (int) ((queryBoxUllon - MapServer.ROOT_ULLON) / xDistBetweenTiles);
+        return (int) ((queryBoxUllon - MapServer.ROOT_ULLON) / xDistBetweenTiles[depth]);
     }
 
-    private int computeRasterUllatYCoord(double queryBoxUllat) {
-        double yDistBetweenTiles = calculateYDistBetweenTiles();
+    private int computeRasterUllatYCoord(int depth, double queryBoxUllat) {
         if (queryBoxUllat > MapServer.ROOT_ULLAT) {
             return 0;
         }
-        return (int) ((MapServer.ROOT_ULLAT - queryBoxUllat) / yDistBetweenTiles);
+        return (int) ((MapServer.ROOT_ULLAT - queryBoxUllat) / yDistBetweenTiles[depth]);
     }
 
-    private int computeRasterLrlonXCoord(double queryBoxLrlon) {
-        double xDistBetweenTiles = calculateXDistBetweenTiles();
-        double coordNum = (queryBoxLrlon - MapServer.ROOT_ULLON) / xDistBetweenTiles;
-        if (coordNum > numOfTilesAcrossDepth) {
-            return (int) numOfTilesAcrossDepth - 1;
+    private int computeRasterLrlonXCoord(int depth, double queryBoxLrlon) {
+        double coordNum = (queryBoxLrlon - MapServer.ROOT_ULLON) / xDistBetweenTiles[depth];
+        if (coordNum >= numOfTilesAcrossDepth[depth]) {
+            return (int) numOfTilesAcrossDepth[depth] - 1;
         }
         return (int) coordNum;
     }
 
-    private int computeRasterLrlatYCoord(double queryBoxLrlat) {
-        double yDistBetweenTiles = calculateYDistBetweenTiles();
-        double coordNum = (MapServer.ROOT_ULLAT - queryBoxLrlat) / yDistBetweenTiles;
-        if (coordNum > numOfTilesAcrossDepth) {
-            return (int) numOfTilesAcrossDepth - 1;
+    private int computeRasterLrlatYCoord(int depth, double queryBoxLrlat) {
+        double coordNum = (MapServer.ROOT_ULLAT - queryBoxLrlat) / yDistBetweenTiles[depth];
+        if (coordNum >= numOfTilesAcrossDepth[depth]) {
+            return (int) numOfTilesAcrossDepth[depth] - 1;
         }
         return (int) coordNum;
     }
 
-    private String[][] computeRenderGrid(int rasterUllonXCoord, int rasterUllatYCoord,
-                                         int rasterLrlonXCoord, int rasterLrlatYCoord) {
-        int nRows = rasterLrlatYCoord - rasterUllatYCoord + 1;
-        int nCols = rasterLrlonXCoord - rasterUllonXCoord + 1;
-        String[][] renderGrid = new String[nRows][nCols];
-        for (int i = 0; i < nRows; i++) {
-            for (int j = 0; j < nCols; j++) {
-                renderGrid[i][j] = "d" + depth + "_x" + (j + rasterUllonXCoord) + "_y" + (i + rasterUllatYCoord) + ".png";
-            }
-        }
-        return renderGrid;
-    }
-
-    private double computeRasterUllon(int rasterUllonXCoord) {
-        double xDistBetweenTiles = calculateXDistBetweenTiles();
-        return MapServer.ROOT_ULLON + rasterUllonXCoord * xDistBetweenTiles;
-    }
-
-    private double computeRasterUllat(double rasterUllatYCoord) {
-        double yDistBetweenTiles = calculateYDistBetweenTiles();
-        return MapServer.ROOT_ULLAT - rasterUllatYCoord * yDistBetweenTiles;
-    }
-
-    private double computeRasterLrlon(double rasterLrlonXCoord) {
-        double xDistBetweenTiles = calculateXDistBetweenTiles();
-        return MapServer.ROOT_ULLON + (rasterLrlonXCoord + 1) * xDistBetweenTiles;
-    }
-
-    private double computeRasterLrlat(double rasterLrlatYCoord) {
-        double yDistBetweenTiles = calculateYDistBetweenTiles();
-        return MapServer.ROOT_ULLAT - (rasterLrlatYCoord + 1) * yDistBetweenTiles;
-    }
-
-    private Map<String, Object> getInvalidQueryResponse() {
-        Map<String, Object> results = new HashMap<>();
-        results.put("render_grid" , null);
-        results.put("raster_ul_lon", 0);
-        results.put("raster_ul_lat", 0);
-        results.put("raster_lr_lon", 0);
-        results.put("raster_lr_lat", 0);
-        results.put("depth", 0);
-        results.put("query_success", false);
-        return results;
-    }
-
-    /*
-        The images that you return as a String[][] when rastering must be those that:
-        Include any region of the query box.
-        Have the greatest LonDPP that is less than or equal to the LonDPP of the query box
-        (as zoomed out as possible). If the requested LonDPP is less than what is available in the data
-        files, you should use the lowest LonDPP available instead (i.e. depth 7 images).
+    /**
+     * Plans the raster for the query box and viewport width in params, without side effects.
+     * The tiles planned are those that include any region of the query box, at the greatest
+     * LonDPP that is less than or equal to the LonDPP of the query box (as zoomed out as
+     * possible), or at the deepest depth if even that is coarser than the query.
+     * @param params The same parameters as for getMapRaster.
+     * @return The plan, or RasterPlan.INVALID if the query box does not intersect the map.
      */
-    public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        if (params.get("lrlon") <= params.get("ullon") || params.get("lrlat") >= params.get("ullat")) {
-            return getInvalidQueryResponse();
-        } else if (params.get("lrlon") < MapServer.ROOT_ULLON || params.get("ullon") > MapServer.ROOT_LRLON) {
-            return getInvalidQueryResponse();
-        } else if (params.get("lrlat") > MapServer.ROOT_ULLAT || params.get("ullat") < MapServer.ROOT_LRLAT) {
-            return getInvalidQueryResponse();
+    public RasterPlan plan(Map<String, Double> params) {
+        return plan(params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                params.get("lrlat"), params.get("w"));
+    }
+
+    /** Same as above, with the query box and viewport width given directly. */
+    public RasterPlan plan(double ullon, double ullat, double lrlon, double lrlat, double w) {
+        if (lrlon <= ullon || lrlat >= ullat) {
+            return RasterPlan.INVALID;
+        } else if (lrlon < MapServer.ROOT_ULLON || ullon > MapServer.ROOT_LRLON) {
+            return RasterPlan.INVALID;
+        } else if (lrlat > MapServer.ROOT_ULLAT || ullat < MapServer.ROOT_LRLAT) {
+            return RasterPlan.INVALID;
         }
 
-        double queryBoxLonDPP = calculateLonDPP(params.get("lrlon"), params.get("ullon"), params.get("w"));
-        initializeDepthValues(queryBoxLonDPP);
-        int rasterUllonXCoord = computeRasterUllonXCoord(params.get("ullon"));
-        int rasterUllatYCoord = computeRasterUllatYCoord(params.get("ullat"));
-        int rasterLrlonXCoord = computeRasterLrlonXCoord(params.get("lrlon"));
-        int rasterLrlatYCoord = computeRasterLrlatYCoord(params.get("lrlat"));
-
-        Map<String, Object> results = new HashMap<>();
-        results.put("render_grid" , computeRenderGrid(rasterUllonXCoord, rasterUllatYCoord, rasterLrlonXCoord, rasterLrlatYCoord));
-        results.put("raster_ul_lon", computeRasterUllon(rasterUllonXCoord));
-        results.put("raster_ul_lat", computeRasterUllat(rasterUllatYCoord));
-        results.put("raster_lr_lon", computeRasterLrlon(rasterLrlonXCoord));
-        results.put("raster_lr_lat", computeRasterLrlat(rasterLrlatYCoord));
-        results.put("depth", depth);
-        results.put("query_success", true);
-        return results;
+        int depth = computeDepth(calculateLonDPP(lrlon, ullon, w));
+        int minX = computeRasterUllonXCoord(depth, ullon);
+        int minY = computeRasterUllatYCoord(depth, ullat);
+        int maxX = computeRasterLrlonXCoord(depth, lrlon);
+        int maxY = computeRasterLrlatYCoord(depth, lrlat);
+        return new RasterPlan(true, depth, minX, minY, maxX, maxY,
+                MapServer.ROOT_ULLON + minX * xDistBetweenTiles[depth],
+                MapServer.ROOT_ULLAT - minY * yDistBetweenTiles[depth],
+                MapServer.ROOT_ULLON + (maxX + 1) * xDistBetweenTiles[depth],
+                MapServer.ROOT_ULLAT - (maxY + 1) * yDistBetweenTiles[depth]);
     }
 }
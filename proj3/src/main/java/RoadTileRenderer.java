@@ -0,0 +1,289 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Draws map tiles of the road network straight from the geometry of a GraphDB, for any depth
+ * and position, so the map still shows the roads where a tile image is missing. Tiles split
+ * the map's bounding box the same way the tile images do, and roads are drawn over a plain
+ * background, styled by their highway type: the more important the road, the wider and later
+ * it is drawn, and minor roads are left out of the tiles that cover most of the map.
+ *
+ * Each road (a pair of adjacent vertices) is listed in every cell of a uniform grid that its
+ * bounding box overlaps, and the cells are stored contiguously, CSR style, as in SpatialIndex.
+ * A tile only visits the roads of the cells it overlaps, and draws the roads of each style as
+ * one path, so it takes a few milliseconds. The renderer keeps no tiles; TileMosaic caches
+ * the tiles it draws like decoded ones.
+ */
+public class RoadTileRenderer {
+    private static final Color BACKGROUND = new Color(242, 239, 233);
+    private static final int ROADS_PER_CELL = 4;
+    /** Depth at which roads are drawn at their style's width; each level up halves the area
+     * of a road, i.e. divides its width by sqrt(2). */
+    private static final int FULL_WIDTH_DEPTH = 7;
+    /**
+     * Shallowest depth whose tiles are antialiased. Roads are about a pixel wide in the tiles
+     * above it, where antialiasing the tens of thousands of roads takes several times longer
+     * than drawing them.
+     */
+    private static final int ANTIALIAS_MIN_DEPTH = 4;
+    private static final Style MAJOR = new Style(new Color(232, 146, 162), 5f, 0, 3);
+    private static final Style PRIMARY = new Style(new Color(252, 214, 164), 4.5f, 0, 2);
+    private static final Style SECONDARY = new Style(new Color(246, 250, 187), 4f, 1, 1);
+    private static final Style MINOR = new Style(Color.WHITE, 3f, 3, 0);
+    /** Styles by highway type; the other types and ways of unknown type are MINOR. */
+    private static final Map<String, Style> STYLES = new LinkedHashMap<>();
+    static {
+        for (String type : new String[]{"motorway", "trunk", "motorway_link", "trunk_link"}) {
+            STYLES.put(type, MAJOR);
+        }
+        STYLES.put("primary", PRIMARY);
+        STYLES.put("primary_link", PRIMARY);
+        STYLES.put("secondary", SECONDARY);
+        STYLES.put("secondary_link", SECONDARY);
+    }
+    /** Styles in the order they are drawn, indexed by Style.layer. */
+    private static final Style[] STYLES_BY_LAYER = {MINOR, SECONDARY, PRIMARY, MAJOR};
+
+    private final double ullon;
+    private final double ullat;
+    private final double lrlon;
+    private final double lrlat;
+    /* Coordinates and layer (index into STYLES_BY_LAYER) of each road. */
+    private final double[] lon0;
+    private final double[] lat0;
+    private final double[] lon1;
+    private final double[] lat1;
+    private final byte[] layer;
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellRoads;
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+
+    /** Style of the roads of one or more highway types. */
+    private static class Style {
+        private final Color color;
+        private final float width;
+        /** Shallowest depth at which these roads are drawn. */
+        private final int minDepth;
+        private final int layer;
+
+        Style(Color color, float width, int minDepth, int layer) {
+            this.color = color;
+            this.width = width;
+            this.minDepth = minDepth;
+            this.layer = layer;
+        }
+    }
+
+    /**
+     * Indexes the roads of g, for tiles splitting the given bounding box of the map.
+     */
+    RoadTileRenderer(GraphDB g, double ullon, double ullat, double lrlon, double lrlat) {
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+
+        int numRoads = 0;
+        for (int v = 0; v < g.size(); v += 1) {
+            for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                if (v < g.edgeTarget(e)) {
+                    numRoads += 1;
+                }
+            }
+        }
+        lon0 = new double[numRoads];
+        lat0 = new double[numRoads];
+        lon1 = new double[numRoads];
+        lat1 = new double[numRoads];
+        layer = new byte[numRoads];
+        Style[] styles = new Style[GraphBuildingHandler.HIGHWAY_TYPES.size() + 1];
+        for (int i = 0; i < styles.length; i += 1) {
+            styles[i] = i == 0 ? MINOR : STYLES.getOrDefault(
+                    GraphBuildingHandler.HIGHWAY_TYPES.get(i - 1), MINOR);
+        }
+        double minLo = Double.MAX_VALUE, maxLo = -Double.MAX_VALUE;
+        double minLa = Double.MAX_VALUE, maxLa = -Double.MAX_VALUE;
+        int r = 0;
+        for (int v = 0; v < g.size(); v += 1) {
+            for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                int w = g.edgeTarget(e);
+                if (v > w) {
+                    continue;
+                }
+                lon0[r] = g.lonAt(v);
+                lat0[r] = g.latAt(v);
+                lon1[r] = g.lonAt(w);
+                lat1[r] = g.latAt(w);
+                layer[r] = (byte) styles[g.wayHighway(g.edgeWay(e)) + 1].layer;
+                minLo = Math.min(minLo, Math.min(lon0[r], lon1[r]));
+                maxLo = Math.max(maxLo, Math.max(lon0[r], lon1[r]));
+                minLa = Math.min(minLa, Math.min(lat0[r], lat1[r]));
+                maxLa = Math.max(maxLa, Math.max(lat0[r], lat1[r]));
+                r += 1;
+            }
+        }
+        if (numRoads == 0) {
+            minLo = 0;
+            maxLo = 0;
+            minLa = 0;
+            maxLa = 0;
+        }
+
+        /* Square cells in miles, adding up to roughly numRoads / ROADS_PER_CELL. */
+        double width = Math.max((maxLo - minLo) * Math.cos(Math.toRadians((minLa + maxLa) / 2)),
+                1e-9);
+        double height = Math.max(maxLa - minLa, 1e-9);
+        double side = Math.sqrt(width * height / Math.max(1, numRoads / ROADS_PER_CELL));
+        cols = Math.max(1, Math.min((int) Math.ceil(width / side), 1 << 12));
+        rows = Math.max(1, Math.min((int) Math.ceil(height / side), 1 << 12));
+        minLon = minLo;
+        minLat = minLa;
+        cellLon = Math.max((maxLo - minLo) / cols, 1e-12) * (1 + 1e-12);
+        cellLat = Math.max((maxLa - minLa) / rows, 1e-12) * (1 + 1e-12);
+
+        /* Two passes over the roads: count the roads in each cell, then fill them in. */
+        cellStart = new int[cols * rows + 1];
+        for (r = 0; r < numRoads; r += 1) {
+            for (int y = row(Math.min(lat0[r], lat1[r])); y <= row(Math.max(lat0[r], lat1[r]));
+                 y += 1) {
+                for (int x = col(Math.min(lon0[r], lon1[r]));
+                     x <= col(Math.max(lon0[r], lon1[r])); x += 1) {
+                    cellStart[cell(x, y) + 1] += 1;
+                }
+            }
+        }
+        for (int c = 0; c < cols * rows; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellRoads = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (r = 0; r < numRoads; r += 1) {
+            for (int y = row(Math.min(lat0[r], lat1[r])); y <= row(Math.max(lat0[r], lat1[r]));
+                 y += 1) {
+                for (int x = col(Math.min(lon0[r], lon1[r]));
+                     x <= col(Math.max(lon0[r], lon1[r])); x += 1) {
+                    cellRoads[fill[cell(x, y)]] = r;
+                    fill[cell(x, y)] += 1;
+                }
+            }
+        }
+    }
+
+    /** Returns the number of roads, i.e. pairs of adjacent vertices, the renderer draws. */
+    int numRoads() {
+        return layer.length;
+    }
+
+    /**
+     * Draws the tile at the given depth and position as a TILE_SIZE square TYPE_INT_RGB image,
+     * or returns null if there is no such tile on the map.
+     */
+    BufferedImage render(int depth, int x, int y) {
+        if (depth < 0 || depth > 30 || x < 0 || y < 0 || x >= 1 << depth || y >= 1 << depth) {
+            return null;
+        }
+        long start = System.nanoTime();
+        double lonPerTile = (lrlon - ullon) / (1 << depth);
+        double latPerTile = (ullat - lrlat) / (1 << depth);
+        double tileUllon = ullon + x * lonPerTile;
+        double tileUllat = ullat - y * latPerTile;
+        double xScale = MapServer.TILE_SIZE / lonPerTile;
+        double yScale = MapServer.TILE_SIZE / latPerTile;
+        float widthScale = (float) Math.pow(2, (depth - FULL_WIDTH_DEPTH) / 2.0);
+
+        /* Roads within half the widest stroke of the tile show up in it. */
+        double padPixels = MAJOR.width * widthScale / 2 + 1;
+        double west = tileUllon - padPixels / xScale;
+        double east = tileUllon + lonPerTile + padPixels / xScale;
+        double north = tileUllat + padPixels / yScale;
+        double south = tileUllat - latPerTile - padPixels / yScale;
+        Path2D.Float[] paths = new Path2D.Float[STYLES_BY_LAYER.length];
+        for (int i = 0; i < paths.length; i += 1) {
+            if (depth >= STYLES_BY_LAYER[i].minDepth) {
+                paths[i] = new Path2D.Float();
+            }
+        }
+        BitSet seen = new BitSet(layer.length);
+        for (int cy = row(south); cy <= row(north); cy += 1) {
+            for (int cx = col(west); cx <= col(east); cx += 1) {
+                int c = cell(cx, cy);
+                for (int i = cellStart[c]; i < cellStart[c + 1]; i += 1) {
+                    int r = cellRoads[i];
+                    Path2D.Float path = paths[layer[r]];
+                    if (path == null || seen.get(r)) {
+                        continue;
+                    }
+                    seen.set(r);
+                    if (Math.max(lon0[r], lon1[r]) < west || Math.min(lon0[r], lon1[r]) > east
+                            || Math.max(lat0[r], lat1[r]) < south
+                            || Math.min(lat0[r], lat1[r]) > north) {
+                        continue;
+                    }
+                    path.moveTo((lon0[r] - tileUllon) * xScale, (tileUllat - lat0[r]) * yScale);
+                    path.lineTo((lon1[r] - tileUllon) * xScale, (tileUllat - lat1[r]) * yScale);
+                }
+            }
+        }
+
+        BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphic = tile.createGraphics();
+        graphic.setColor(BACKGROUND);
+        graphic.fillRect(0, 0, MapServer.TILE_SIZE, MapServer.TILE_SIZE);
+        if (depth >= ANTIALIAS_MIN_DEPTH) {
+            graphic.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+        }
+        for (int i = 0; i < paths.length; i += 1) {
+            if (paths[i] == null) {
+                continue;
+            }
+            graphic.setColor(STYLES_BY_LAYER[i].color);
+            graphic.setStroke(new BasicStroke(Math.max(1f, STYLES_BY_LAYER[i].width
+                    * widthScale), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            graphic.draw(paths[i]);
+        }
+        graphic.dispose();
+        rendered.incrementAndGet();
+        renderNanos.addAndGet(System.nanoTime() - start);
+        return tile;
+    }
+
+    /** Returns the counters of the renderer, for reporting as JSON. */
+    Map<String, Object> stats() {
+        long n = rendered.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("roads", layer.length);
+        stats.put("rendered", n);
+        stats.put("mean_render_ms", n == 0 ? 0.0 : renderNanos.get() / 1e6 / n);
+        return stats;
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((lon - minLon) / cellLon)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellLat)));
+    }
+
+    private int cell(int x, int y) {
+        return y * cols + x;
+    }
+}
@@ -0,0 +1,169 @@
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The current route of each client of the server, by session token, so that one client's
+ * /route and /clear_route only change the rasters of that client. A client gets a random token
+ * with its first route, and sends it back with its later requests; a request without a live
+ * token has no route.
+ *
+ * Sessions expire once they have not been used for the time to live. They are kept in an
+ * LruCache weighted by an estimate of their bytes, mostly their route, so the memory they take
+ * is bounded whatever the routes; once the budget is spent, the least recently used sessions,
+ * which include every expired one, are evicted in constant time per session.
+ */
+public class RouteSessions {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int TOKEN_BYTES = 16;
+    /** Estimated bytes of a session besides its route: the token, entry, session and route. */
+    private static final long SESSION_BYTES = 256;
+    /** Estimated bytes per node of a route: a boxed Long and the reference to it. */
+    private static final long NODE_BYTES = 24;
+
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LruCache<String, Session> sessions;
+    /** Versions of the routes set so far; 0 is the version of Route.NONE. */
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * A route and its version, which is different for every route set, so that rasters can be
+     * cached by the version of the route drawn over them. Routes are never modified.
+     */
+    static class Route {
+        /** The route of clients without one. */
+        static final Route NONE = new Route(Collections.emptyList(), 0);
+
+        private final List<Long> nodes;
+        private final long version;
+
+        private Route(List<Long> nodes, long version) {
+            this.nodes = nodes;
+            this.version = version;
+        }
+
+        /** Returns the ids of the nodes of the route, which is empty if there is none. */
+        List<Long> nodes() {
+            return nodes;
+        }
+
+        long version() {
+            return version;
+        }
+    }
+
+    /** A client's route. set and clear replace the whole session, so that its weight does not
+     * change while it is cached. */
+    private static class Session {
+        private final Route route;
+        private volatile long lastAccess;
+
+        Session(Route route, long now) {
+            this.route = route;
+            this.lastAccess = now;
+        }
+    }
+
+    /**
+     * @param ttlMillis How long a session lives after it was last used.
+     * @param maxBytes The budget for the estimated bytes of all sessions.
+     */
+    RouteSessions(long ttlMillis, long maxBytes) {
+        this(ttlMillis, maxBytes, System::currentTimeMillis);
+    }
+
+    /** Same as above, but reads the time in milliseconds from clock. */
+    RouteSessions(long ttlMillis, long maxBytes, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.sessions = new LruCache<>(maxBytes, RouteSessions::weigh);
+    }
+
+    /** Returns the route of the session with the given token, or Route.NONE if there is no
+     * such live session. token may be null. */
+    Route get(String token) {
+        Session session = live(token);
+        return session == null ? Route.NONE : session.route;
+    }
+
+    /**
+     * Sets the route of the session with the given token, or of a new session if token is null
+     * or not a live session.
+     * @return The token of the session.
+     */
+    String set(String token, List<Long> nodes) {
+        if (live(token) == null) {
+            token = newToken();
+            created.incrementAndGet();
+        }
+        Route route = new Route(Collections.unmodifiableList(nodes),
+                lastVersion.incrementAndGet());
+        sessions.put(token, new Session(route, clock.getAsLong()));
+        return token;
+    }
+
+    /** Clears the route of the session with the given token, if it is live. */
+    void clear(String token) {
+        if (live(token) != null) {
+            sessions.put(token, new Session(Route.NONE, clock.getAsLong()));
+        }
+    }
+
+    /** Returns the number of sessions, including expired ones not evicted yet. */
+    int size() {
+        return sessions.size();
+    }
+
+    /** Returns the counters of the sessions, for reporting as JSON. */
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.size());
+        stats.put("bytes", sessions.weight());
+        stats.put("created", created.get());
+        stats.put("expired", expired.get());
+        stats.put("evicted", sessions.evictions());
+        return stats;
+    }
+
+    /** Returns the session with the given token and marks it used, or null if there is no
+     * such session or it has expired. */
+    private Session live(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (now - session.lastAccess > ttlMillis) {
+            if (sessions.invalidate(token, session)) {
+                expired.incrementAndGet();
+            }
+            return null;
+        }
+        session.lastAccess = now;
+        return session;
+    }
+
+    private static long weigh(Session session) {
+        return SESSION_BYTES + NODE_BYTES * session.route.nodes.size();
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
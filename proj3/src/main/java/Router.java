@@ -12,19 +12,41 @@ import java.util.regex.Pattern;
  */
 public class Router {
 
-    private static void relax(GraphDB g, PriorityQueue<Node> fringe, Node v, Node w, Node t) {
-        double d = v.getDistFromS() + g.distance(v.getId(), w.getId());
-        if (d < w.getDistFromS()) {
-            w.setDistFromS(d);
-            w.setPrev(v);
-            fringe.add(w);
+    /** The search used to answer shortest path queries. */
+    public enum Algorithm {
+        /** A* over the whole graph, with a trig-free lower bound on the great-circle distance
+         * as the heuristic. */
+        ASTAR,
+        /** A* from both ends at once, with the average of the forward and backward heuristics
+         * as a consistent potential. Settles fewer vertices than A* on long routes. */
+        BIDIRECTIONAL_ASTAR,
+        /** A* with the graph's Landmarks as the heuristic, where they beat the straight line. */
+        ALT,
+        /** Bidirectional upward search in the graph's ContractionHierarchy, which must have
+         * been built or loaded beforehand. */
+        CH
+    }
+
+    private static void relax(GraphDB g, Landmarks landmarks, SearchWorkspace ws, int v, int e,
+                              int t) {
+        int w = g.edgeTarget(e);
+        double d = ws.distFromS(v) + g.edgeLength(e);
+        if (d < ws.distFromS(w)) {
+            ws.set(w, d, v);
+            ws.fringe().add(w, d + heuristic(g, landmarks, w, t));
         }
     }
 
+    /** Returns the A* heuristic from v to t, using landmarks too unless they are null. */
+    private static double heuristic(GraphDB g, Landmarks landmarks, int v, int t) {
+        double h = g.distanceLowerBound(v, t);
+        return landmarks == null ? h : Math.max(h, landmarks.lowerBound(v, t));
+    }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
-     * location.
+     * location. Safe to call from several threads at once.
      * @param g The graph to use.
      * @param stlon The longitude of the start location.
      * @param stlat The latitude of the start location.
@@ -34,40 +56,148 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        LinkedList<Long> list = new LinkedList<>();
-        PriorityQueue<Node> fringe = new PriorityQueue<>();
-        Set<Node> allVisitedNodes = new HashSet<>();
-        Node s = g.getNode(g.closest(stlon, stlat));
-        Node t = g.getNode(g.closest(destlon, destlat));
-        fringe.add(s);
-        s.setDistFromS(0.0);
-        allVisitedNodes.add(s);
+        return shortestPath(g, stlon, stlat, destlon, destlat, Algorithm.ASTAR);
+    }
+
+    /**
+     * Same as above, but finds the path with the given algorithm. Every algorithm returns a
+     * shortest path, though they may pick different ones among paths of equal length.
+     * @throws IllegalStateException if algorithm is CH and g has no contraction hierarchy, or
+     * ALT and g has no landmarks.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Algorithm algorithm) {
+        return shortestPath(g, g.index(g.closest(stlon, stlat)),
+                g.index(g.closest(destlon, destlat)), algorithm);
+    }
+
+    /**
+     * Finds the shortest path from vertex index s to vertex index t with the given algorithm,
+     * in a workspace from the graph's pool.
+     * @return The ids of the vertices on the shortest path, or just s if t is unreachable.
+     */
+    static List<Long> shortestPath(GraphDB g, int s, int t, Algorithm algorithm) {
+        SearchWorkspace ws = g.acquireWorkspace();
+        try {
+            return shortestPath(g, ws, s, t, algorithm);
+        } finally {
+            g.releaseWorkspace(ws);
+        }
+    }
+
+    /**
+     * Finds the shortest path from vertex index s to vertex index t with the given algorithm,
+     * using the given freshly reset workspace.
+     * @return The ids of the vertices on the shortest path, or just s if t is unreachable.
+     */
+    static List<Long> shortestPath(GraphDB g, SearchWorkspace ws, int s, int t,
+                                   Algorithm algorithm) {
+        switch (algorithm) {
+            case CH:
+                if (g.contractionHierarchy() == null) {
+                    throw new IllegalStateException("No contraction hierarchy for this graph.");
+                }
+                return g.contractionHierarchy().shortestPath(ws, s, t);
+            case BIDIRECTIONAL_ASTAR:
+                return bidirectionalAStar(g, ws, s, t);
+            case ALT:
+                if (g.landmarks() == null) {
+                    throw new IllegalStateException("No landmarks for this graph.");
+                }
+                return aStar(g, g.landmarks(), ws, s, t);
+            case ASTAR:
+            default:
+                return aStar(g, null, ws, s, t);
+        }
+    }
+
+    private static List<Long> aStar(GraphDB g, Landmarks landmarks, SearchWorkspace ws, int s,
+                                    int t) {
+        IndexedMinHeap fringe = ws.fringe();
+        ws.set(s, 0.0, -1);
+        fringe.add(s, heuristic(g, landmarks, s, t));
         while (!fringe.isEmpty()) {
-            Node v = fringe.poll();
-            if (v.getId() == t.getId()) {
+            int v = fringe.poll();
+            if (v == t) {
                 break;
             }
-            for (Long endId : v.getAdj().keySet()) {
-                Node w = g.getNode(endId);
-                w.setDistToT(g.distance(w.getId(), t.getId()));
-                relax(g, fringe, v, w, t);
-                allVisitedNodes.add(w);
+            ws.countSettled();
+            for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                relax(g, landmarks, ws, v, e, t);
             }
         }
-        while (t.getPrev() != null) {
-            list.addFirst(t.getId());
-            t = t.getPrev();
+
+        LinkedList<Long> list = new LinkedList<>();
+        for (int v = t; ws.prev(v) != -1; v = ws.prev(v)) {
+            list.addFirst(g.id(v));
+        }
+        list.addFirst(g.id(s));
+        return list;
+    }
+
+    /**
+     * Runs A* from s in the graph and from t in the reverse graph, expanding whichever side
+     * has the smaller key. Both sides use the potential p(v) = (h(v, t) - h(s, v)) / 2, the
+     * backward side with the opposite sign, so that edge lengths reduced by the potential are
+     * the same in both directions and nonnegative. The search can then stop as soon as the
+     * two smallest keys add up to the length of the best path found so far.
+     * @see <a href="https://doi.org/10.1145/1070432.1070455">Goldberg and Harrelson, Computing
+     * the Shortest Path: A* Search Meets Graph Theory</a>
+     */
+    private static List<Long> bidirectionalAStar(GraphDB g, SearchWorkspace ws, int s, int t) {
+        SearchWorkspace fw = ws;
+        SearchWorkspace bw = ws.reverse();
+        IndexedMinHeap forward = fw.fringe();
+        IndexedMinHeap backward = bw.fringe();
+        fw.set(s, 0.0, -1);
+        bw.set(t, 0.0, -1);
+        forward.add(s, potential(g, s, s, t));
+        backward.add(t, -potential(g, t, s, t));
+        double best = s == t ? 0.0 : Double.MAX_VALUE;
+        int meet = s == t ? s : -1;
+
+        while (!forward.isEmpty() && !backward.isEmpty()
+                && forward.peekPriority() + backward.peekPriority() < best) {
+            boolean isForward = forward.peekPriority() <= backward.peekPriority();
+            IndexedMinHeap fringe = isForward ? forward : backward;
+            SearchWorkspace mine = isForward ? fw : bw;
+            SearchWorkspace other = isForward ? bw : fw;
+            double sign = isForward ? 1 : -1;
+            int v = fringe.poll();
+            mine.countSettled();
+            for (int e = g.firstEdge(v); e < g.firstEdge(v + 1); e += 1) {
+                int w = g.edgeTarget(e);
+                double d = mine.distFromS(v) + g.edgeLength(e);
+                if (d < mine.distFromS(w)) {
+                    mine.set(w, d, v);
+                    fringe.add(w, d + sign * potential(g, w, s, t));
+                    if (other.distFromS(w) != Double.MAX_VALUE && d + other.distFromS(w) < best) {
+                        best = d + other.distFromS(w);
+                        meet = w;
+                    }
+                }
+            }
         }
 
-        list.addFirst(s.getId());
-        for (Node n : allVisitedNodes) {
-            n.setDistFromS(Double.MAX_VALUE);
-            n.setDistToT(0.0);
-            n.setPrev(null);
+        LinkedList<Long> list = new LinkedList<>();
+        if (meet == -1) {
+            list.add(g.id(s));
+            return list;
+        }
+        for (int v = meet; v != -1; v = fw.prev(v)) {
+            list.addFirst(g.id(v));
+        }
+        for (int v = bw.prev(meet); v != -1; v = bw.prev(v)) {
+            list.addLast(g.id(v));
         }
         return list;
     }
 
+    /** Returns the forward potential of v for bidirectional A* from s to t. */
+    private static double potential(GraphDB g, int v, int s, int t) {
+        return (g.distanceLowerBound(v, t) - g.distanceLowerBound(s, v)) / 2;
+    }
+
     private static int computeDirection(double prevBearing, double currentBearing) {
         double bearing = currentBearing - prevBearing;
         if (bearing >= -15f && bearing <= 15f) {
@@ -110,34 +240,34 @@ public class Router {
      * @param route The route to translate into directions. Each element
      *              corresponds to a node from the graph in the route.
      * @return A list of NavigationDirection objects corresponding to the input
-     * route.
+     * route. Ids that are not in the graph are skipped, along with the edges to and from them.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
         List<NavigationDirection> list = new ArrayList<>();
         int direction = NavigationDirection.START;
         double distance = 0f;
-        long prevWayId = -1l;
+        int prevWay = -1;
         double prevBearing = 0f;
-        Node v = null;
+        int v = -1;
         for (Long id : route) {
-            Node w = g.getNode(id);
-            if (v != null) {
-                long currentWayId = v.getAdj().get(id);
-                double currentBearing = g.bearing(v.getId(), id);
-                if (prevWayId > 0 && !g.getWay(currentWayId).equals(g.getWay(prevWayId))) {
-                    list.add(new NavigationDirection(direction, g.getWay(prevWayId), distance));
+            int w = g.find(id);
+            if (v != -1 && w != -1) {
+                int currentWay = g.edgeWay(g.edgeBetween(v, w));
+                double currentBearing = g.bearing(g.id(v), id);
+                if (prevWay >= 0 && !g.wayName(currentWay).equals(g.wayName(prevWay))) {
+                    list.add(new NavigationDirection(direction, g.wayName(prevWay), distance));
                     direction = computeDirection(prevBearing, currentBearing);
-                    distance = g.distance(v.getId(), id);
+                    distance = g.distanceAt(v, w);
                     if (id == getLastRouteNodeId(route)) {
-                        list.add(new NavigationDirection(direction, g.getWay(currentWayId), distance));
+                        list.add(new NavigationDirection(direction, g.wayName(currentWay), distance));
                     }
                 } else {
-                    distance += g.distance(v.getId(), id);
+                    distance += g.distanceAt(v, w);
                     if (id == getLastRouteNodeId(route)) {
-                        list.add(new NavigationDirection(direction, g.getWay(currentWayId), distance));
+                        list.add(new NavigationDirection(direction, g.wayName(currentWay), distance));
                     }
                 }
-                prevWayId = currentWayId;
+                prevWay = currentWay;
                 prevBearing = currentBearing;
             }
             v = w;
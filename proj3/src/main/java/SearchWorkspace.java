@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+/**
+ * Per-query state of a shortest path search over a GraphDB: the best known distance from the
+ * source and the predecessor of every vertex, indexed by dense vertex index, and the fringe.
+ * A workspace is used by one search at a time; GraphDB pools them so that concurrent routes
+ * never share state and repeated routes do not reallocate it.
+ *
+ * Entries are only valid if their stamp equals the current generation, so reset() forgets the
+ * previous search in O(1) instead of refilling the arrays. Bidirectional searches keep the
+ * state of their backward half in a paired reverse() workspace, which is reset along with it.
+ */
+public class SearchWorkspace {
+    private final double[] distFromS;
+    private final int[] prev;
+    private final int[] stamp;
+    private final IndexedMinHeap fringe;
+    private int generation;
+    private int settled;
+    private SearchWorkspace reverse;
+
+    SearchWorkspace(int numVertices) {
+        this.distFromS = new double[numVertices];
+        this.prev = new int[numVertices];
+        this.stamp = new int[numVertices];
+        this.fringe = new IndexedMinHeap(numVertices);
+        this.generation = 0;
+    }
+
+    /** Forgets all distances and predecessors recorded since the last reset. */
+    void reset() {
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        settled = 0;
+        fringe.clear();
+        if (reverse != null) {
+            reverse.reset();
+        }
+    }
+
+    /** Returns the workspace for the backward half of a bidirectional search, in which
+     * distFromS is the distance to the target. */
+    SearchWorkspace reverse() {
+        if (reverse == null) {
+            reverse = new SearchWorkspace(distFromS.length);
+            reverse.reset();
+        }
+        return reverse;
+    }
+
+    /** Returns the fringe of the search, empty after a reset. */
+    IndexedMinHeap fringe() {
+        return fringe;
+    }
+
+    /** Records that a search settled (expanded) one more vertex. */
+    void countSettled() {
+        settled += 1;
+    }
+
+    /** Returns the number of vertices settled since the last reset, in both directions. */
+    int settled() {
+        return reverse == null ? settled : settled + reverse.settled;
+    }
+
+    /** Returns the best known distance to v, or Double.MAX_VALUE if v has not been reached. */
+    double distFromS(int v) {
+        return stamp[v] == generation ? distFromS[v] : Double.MAX_VALUE;
+    }
+
+    /** Returns the predecessor of v on the best known path, or -1 if there is none. */
+    int prev(int v) {
+        return stamp[v] == generation ? prev[v] : -1;
+    }
+
+    /** Records that v is reachable at distance d through predecessor p (-1 for a source). */
+    void set(int v, double d, int p) {
+        distFromS[v] = d;
+        prev[v] = p;
+        stamp[v] = generation;
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent computations of the same key: while a computation for a key is in
+ * flight, other threads asking for the same key wait for it and share its result instead of
+ * computing it again. Once it is done, the next call for the key computes afresh, so this
+ * is no cache; wrap a cache lookup in it to also share results after the fact.
+ *
+ * A computation that throws makes every thread waiting on it throw the same exception.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Returns the result of computation for key, computing it on this thread unless a
+     * computation for key is already in flight, in which case this waits for its result.
+     */
+    V run(K key, Supplier<? extends V> computation) {
+        calls.incrementAndGet();
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            try {
+                return leader.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            V value = computation.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /** Returns the number of calls that shared the result of another call. */
+    long coalesced() {
+        return coalesced.get();
+    }
+
+    /** Returns the counters of the calls, for reporting as JSON. */
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("calls", calls.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("in_flight", inFlight.size());
+        return stats;
+    }
+}
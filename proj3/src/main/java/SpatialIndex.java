@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Uniform grid over the vertices of a GraphDB, answering nearest neighbor, k-nearest and radius
+ * queries by great-circle distance. Cells are sized so that each holds about two vertices, and
+ * the vertices of each cell are stored contiguously, CSR style.
+ *
+ * Nearest neighbor searches visit rings of cells around the query point and stop once no
+ * unvisited cell can hold anything closer. A point whose latitude differs from the query's by
+ * dphi is at least R * dphi away, and one whose longitude differs by dlambda is at least
+ * 2R * asin(c * sin(dlambda / 2)) away, where c is the smallest cosine of the latitudes
+ * involved; these bounds make the results exactly those of a linear scan.
+ *
+ * Coordinates are copied into cell order so a search reads them sequentially, and each
+ * candidate is first checked against a trig-free lower bound on its haversine term, so only
+ * the few vertices that could beat the best so far cost a full haversine evaluation.
+ */
+public class SpatialIndex {
+    private static final double EARTH_RADIUS_MILES = 3963;
+    private static final int VERTICES_PER_CELL = 2;
+    /** Loosens bounds slightly so rounding error never prunes a candidate too early. */
+    private static final double BOUND_SLACK = 1e-9;
+
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellVertices;
+    /** Longitude, latitude and cosine of the latitude of cellVertices[i], for each i. */
+    private final double[] slotLon;
+    private final double[] slotLat;
+    private final double[] slotCos;
+    /** Smallest cosine of the latitude of any vertex. */
+    private final double minCos;
+
+    SpatialIndex(GraphDB g) {
+        int n = g.size();
+        double minLo = Double.MAX_VALUE, maxLo = -Double.MAX_VALUE;
+        double minLa = Double.MAX_VALUE, maxLa = -Double.MAX_VALUE;
+        for (int v = 0; v < n; v += 1) {
+            minLo = Math.min(minLo, g.lonAt(v));
+            maxLo = Math.max(maxLo, g.lonAt(v));
+            minLa = Math.min(minLa, g.latAt(v));
+            maxLa = Math.max(maxLa, g.latAt(v));
+        }
+        if (n == 0) {
+            minLo = 0;
+            maxLo = 0;
+            minLa = 0;
+            maxLa = 0;
+        }
+        minCos = Math.min(Math.cos(Math.toRadians(minLa)), Math.cos(Math.toRadians(maxLa)));
+
+        /* Square cells in miles, adding up to roughly n / VERTICES_PER_CELL. */
+        double width = Math.max((maxLo - minLo) * Math.cos(Math.toRadians((minLa + maxLa) / 2)),
+                1e-9);
+        double height = Math.max(maxLa - minLa, 1e-9);
+        double side = Math.sqrt(width * height / Math.max(1, n / VERTICES_PER_CELL));
+        cols = Math.max(1, Math.min((int) Math.ceil(width / side), 1 << 15));
+        rows = Math.max(1, Math.min((int) Math.ceil(height / side), 1 << 15));
+        minLon = minLo;
+        minLat = minLa;
+        cellLon = Math.max((maxLo - minLo) / cols, 1e-12) * (1 + 1e-12);
+        cellLat = Math.max((maxLa - minLa) / rows, 1e-12) * (1 + 1e-12);
+
+        cellStart = new int[cols * rows + 1];
+        int[] cellOf = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            cellOf[v] = cell(col(g.lonAt(v)), row(g.latAt(v)));
+            cellStart[cellOf[v] + 1] += 1;
+        }
+        for (int c = 0; c < cols * rows; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellVertices = new int[n];
+        slotLon = new double[n];
+        slotLat = new double[n];
+        slotCos = new double[n];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int v = 0; v < n; v += 1) {
+            int i = fill[cellOf[v]];
+            cellVertices[i] = v;
+            slotLon[i] = g.lonAt(v);
+            slotLat[i] = g.latAt(v);
+            slotCos[i] = Math.cos(Math.toRadians(g.latAt(v)));
+            fill[cellOf[v]] += 1;
+        }
+    }
+
+    /**
+     * Returns the index of the vertex closest to the given point, or -1 if the graph is empty.
+     * Ties go to the lowest vertex index, as in a linear scan.
+     */
+    int closest(double lon, double lat) {
+        double cosLat = Math.cos(Math.toRadians(lat));
+        int cx = col(lon);
+        int cy = row(lat);
+        int best = -1;
+        double bestA = Double.MAX_VALUE;
+        for (int r = 0; ; r += 1) {
+            for (int y = cy - r; y <= cy + r; y += 1) {
+                if (y < 0 || y >= rows) {
+                    continue;
+                }
+                int step = (y == cy - r || y == cy + r) ? 1 : 2 * r;
+                for (int x = cx - r; x <= cx + r; x += Math.max(step, 1)) {
+                    if (x < 0 || x >= cols) {
+                        continue;
+                    }
+                    int c = cell(x, y);
+                    for (int i = cellStart[c]; i < cellStart[c + 1]; i += 1) {
+                        if (haversineLowerBound(i, lon, lat, cosLat)
+                                > bestA * (1 + BOUND_SLACK)) {
+                            continue;
+                        }
+                        double a = haversine(i, lon, lat, cosLat);
+                        int v = cellVertices[i];
+                        if (a < bestA * (1 - BOUND_SLACK)) {
+                            best = v;
+                            bestA = a;
+                        } else if (a <= bestA * (1 + BOUND_SLACK)) {
+                            /* Nearly tied: break the tie on distance as a linear scan would. */
+                            double d = GraphDB.distance(a);
+                            double bestDist = GraphDB.distance(bestA);
+                            if (d < bestDist || (d == bestDist && v < best)) {
+                                best = v;
+                                bestA = a;
+                            }
+                        }
+                    }
+                }
+            }
+            if (coversGrid(cx, cy, r)
+                    || bestA < unvisitedBound(lon, lat, cosLat, cx, cy, r)) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Returns the indices of the k vertices closest to the given point, nearest first (or all
+     * vertices, if there are fewer than k).
+     */
+    int[] nearest(double lon, double lat, int k) {
+        if (k <= 0) {
+            return new int[0];
+        }
+        /* Max-heap of the best k so far, farthest (then highest index) on top. */
+        PriorityQueue<double[]> best = new PriorityQueue<>((a, b) -> a[0] != b[0]
+                ? Double.compare(b[0], a[0]) : Double.compare(b[1], a[1]));
+        double cosLat = Math.cos(Math.toRadians(lat));
+        int cx = col(lon);
+        int cy = row(lat);
+        for (int r = 0; ; r += 1) {
+            for (int y = cy - r; y <= cy + r; y += 1) {
+                if (y < 0 || y >= rows) {
+                    continue;
+                }
+                int step = (y == cy - r || y == cy + r) ? 1 : 2 * r;
+                for (int x = cx - r; x <= cx + r; x += Math.max(step, 1)) {
+                    if (x < 0 || x >= cols) {
+                        continue;
+                    }
+                    int c = cell(x, y);
+                    for (int i = cellStart[c]; i < cellStart[c + 1]; i += 1) {
+                        int v = cellVertices[i];
+                        double d = GraphDB.distance(haversine(i, lon, lat, cosLat));
+                        if (best.size() < k) {
+                            best.add(new double[]{d, v});
+                        } else if (d < best.peek()[0] || (d == best.peek()[0]
+                                && v < best.peek()[1])) {
+                            best.poll();
+                            best.add(new double[]{d, v});
+                        }
+                    }
+                }
+            }
+            if (coversGrid(cx, cy, r) || (best.size() == k && best.peek()[0]
+                    < GraphDB.distance(unvisitedBound(lon, lat, cosLat, cx, cy, r)))) {
+                break;
+            }
+        }
+        int[] result = new int[best.size()];
+        for (int i = result.length - 1; i >= 0; i -= 1) {
+            result[i] = (int) best.poll()[1];
+        }
+        return result;
+    }
+
+    /** Returns the indices of all vertices within the given great-circle distance of the
+     * point, nearest first. */
+    int[] withinRadius(double lon, double lat, double miles) {
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double c = Math.min(minCos, cosLat);
+        double dLat = Math.toDegrees(miles / EARTH_RADIUS_MILES);
+        double sinHalf = Math.sin(Math.min(miles / EARTH_RADIUS_MILES, Math.PI) / 2) / c;
+        double dLon = sinHalf >= 1 ? 360 : Math.toDegrees(2 * Math.asin(sinHalf));
+        int x0 = col(lon - dLon);
+        int x1 = col(lon + dLon);
+        int y0 = row(lat - dLat);
+        int y1 = row(lat + dLat);
+
+        List<double[]> found = new ArrayList<>();
+        for (int y = y0; y <= y1; y += 1) {
+            for (int x = x0; x <= x1; x += 1) {
+                int cl = cell(x, y);
+                for (int i = cellStart[cl]; i < cellStart[cl + 1]; i += 1) {
+                    int v = cellVertices[i];
+                    double d = GraphDB.distance(haversine(i, lon, lat, cosLat));
+                    if (d <= miles) {
+                        found.add(new double[]{d, v});
+                    }
+                }
+            }
+        }
+        found.sort((a, b) -> a[0] != b[0] ? Double.compare(a[0], b[0])
+                : Double.compare(a[1], b[1]));
+        int[] result = new int[found.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (int) found.get(i)[1];
+        }
+        return result;
+    }
+
+    /** Returns whether the square of cells within r of (cx, cy) contains the whole grid. */
+    private boolean coversGrid(int cx, int cy, int r) {
+        return cx - r <= 0 && cy - r <= 0 && cx + r >= cols - 1 && cy + r >= rows - 1;
+    }
+
+    /**
+     * Returns a lower bound on the haversine term between the point and any vertex outside the
+     * square of cells within r of (cx, cy). cosLat is the cosine of the query latitude.
+     */
+    private double unvisitedBound(double lon, double lat, double cosLat, int cx, int cy, int r) {
+        double gapLon = Double.MAX_VALUE;
+        if (cx - r > 0) {
+            gapLon = Math.min(gapLon, lon - (minLon + (cx - r) * cellLon));
+        }
+        if (cx + r < cols - 1) {
+            gapLon = Math.min(gapLon, minLon + (cx + r + 1) * cellLon - lon);
+        }
+        double gapLat = Double.MAX_VALUE;
+        if (cy - r > 0) {
+            gapLat = Math.min(gapLat, lat - (minLat + (cy - r) * cellLat));
+        }
+        if (cy + r < rows - 1) {
+            gapLat = Math.min(gapLat, minLat + (cy + r + 1) * cellLat - lat);
+        }
+        double bound = Double.MAX_VALUE;
+        if (gapLat != Double.MAX_VALUE) {
+            double sinHalf = sinLowerBound(Math.toRadians(Math.max(gapLat, 0)) / 2);
+            bound = sinHalf * sinHalf;
+        }
+        if (gapLon != Double.MAX_VALUE) {
+            double c = Math.min(minCos, cosLat);
+            double sinHalf = sinLowerBound(Math.toRadians(Math.max(gapLon, 0)) / 2);
+            bound = Math.min(bound, c * c * sinHalf * sinHalf);
+        }
+        return bound * (1 - BOUND_SLACK);
+    }
+
+    /**
+     * Returns the haversine term between the vertex in slot i and the query point, computed
+     * exactly as GraphDB.distance computes it, so that GraphDB.distance(a) matches it bit for
+     * bit. cosLat is the cosine of the query latitude.
+     */
+    private double haversine(int i, double lon, double lat, double cosLat) {
+        double dphi = Math.toRadians(lat - slotLat[i]);
+        double dlambda = Math.toRadians(lon - slotLon[i]);
+        double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
+        a += slotCos[i] * cosLat * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
+        return a;
+    }
+
+    /**
+     * Returns a lower bound on haversine(i, lon, lat, cosLat) without calling any trig
+     * function.
+     */
+    private double haversineLowerBound(int i, double lon, double lat, double cosLat) {
+        double sinX = sinLowerBound(Math.abs(Math.toRadians(lat - slotLat[i])) / 2.0);
+        double sinY = sinLowerBound(Math.abs(Math.toRadians(lon - slotLon[i])) / 2.0);
+        return sinX * sinX + slotCos[i] * cosLat * sinY * sinY;
+    }
+
+    /** Returns a lower bound on sin(x) for x >= 0 that is never negative. */
+    private static double sinLowerBound(double x) {
+        /* sin(x) >= x - x^3 / 6 for all x >= 0, and the right hand side is positive up to
+         * sqrt(6); beyond that fall back to the trivial bound. */
+        return x < 2 ? x * (1 - x * x / 6) : 0;
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((lon - minLon) / cellLon)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellLat)));
+    }
+
+    private int cell(int x, int y) {
+        return y * cols + x;
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A folder of tiles packed into one file, which the server memory-maps so a tile read is a
+ * binary search of the index and a slice of the mapping, without any system calls. The file
+ * is laid out as (little endian):
+ * <pre>
+ *   header: magic, version, number of tiles n, number of tile files (4 ints),
+ *           newest modification time of the tile files (long)
+ *   index:  n entries of key (long), offset (long), length (int), padding (int), by key
+ *   data:   the PNG files, back to back
+ * </pre>
+ * where the key of a tile is depth &lt;&lt; 48 | x &lt;&lt; 24 | y, so only tiles for which
+ * TileSource.isTile holds are packed or read. The whole file is one mapping, so it must be
+ * smaller than 2 GB.
+ *
+ * The archive is built offline by running main, which packs the tile folder next to it. The
+ * number of tile files and their newest modification time are a fingerprint of the folder:
+ * open refuses an archive whose fingerprint no longer matches, so tiles added or changed since
+ * it was packed are read from the folder rather than served stale.
+ */
+public class TileArchive implements TileSource {
+    /** Suffix appended to the tile folder path to get the archive path. */
+    static final String EXTENSION = ".tiles";
+    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs";
+    private static final int MAGIC = 0x424d5441;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final int ENTRY_BYTES = 24;
+    private static final Pattern TILE_FILE = Pattern.compile("d(\\d+)_x(\\d+)_y(\\d+)\\.png");
+
+    private final ByteBuffer buffer;
+    /** Keys of the tiles in the index, in increasing order. */
+    private final long[] keys;
+
+    private TileArchive(ByteBuffer buffer, long[] keys) {
+        this.buffer = buffer;
+        this.keys = keys;
+    }
+
+    /** Packs the tile folder given as the first argument (or IMG_ROOT) into an archive. */
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : IMG_ROOT;
+        long start = System.nanoTime();
+        File archive = new File(imgRoot + EXTENSION);
+        int n = pack(new File(imgRoot), archive);
+        System.out.println(String.format("Packed %d tiles into %s (%.1f MB) in %.1f s.", n,
+                archive, archive.length() / 1e6, (System.nanoTime() - start) / 1e9));
+    }
+
+    private static long key(int depth, int x, int y) {
+        return (long) depth << 48 | (long) x << 24 | y;
+    }
+
+    /**
+     * Returns the number of tile files in folder and their newest modification time, or null
+     * if the folder cannot be listed.
+     */
+    private static long[] fingerprint(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return null;
+        }
+        long count = 0;
+        long newest = 0;
+        for (File file : files) {
+            if (TILE_FILE.matcher(file.getName()).matches()) {
+                count += 1;
+                newest = Math.max(newest, file.lastModified());
+            }
+        }
+        return new long[]{count, newest};
+    }
+
+    /**
+     * Packs the tiles in folder into archive, replacing it.
+     * @return The number of tiles packed.
+     */
+    static int pack(File folder, File archive) throws IOException {
+        List<long[]> tiles = new ArrayList<>();
+        long[] fingerprint = fingerprint(folder);
+        File[] files = folder.listFiles();
+        if (fingerprint == null || files == null) {
+            throw new IOException("Cannot list " + folder);
+        }
+        if (fingerprint[0] > Integer.MAX_VALUE) {
+            throw new IOException(folder + " has more tile files than an archive can hold.");
+        }
+        for (File file : files) {
+            Matcher m = TILE_FILE.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            try {
+                int depth = Integer.parseInt(m.group(1));
+                int x = Integer.parseInt(m.group(2));
+                int y = Integer.parseInt(m.group(3));
+                if (TileSource.isTile(depth, x, y)) {
+                    tiles.add(new long[]{key(depth, x, y), file.length()});
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+        }
+        tiles.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        int n = tiles.size();
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + n * ENTRY_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(MAGIC).putInt(VERSION).putInt(n).putInt((int) fingerprint[0])
+                .putLong(fingerprint[1]);
+        long offset = index.capacity();
+        for (long[] tile : tiles) {
+            index.putLong(tile[0]).putLong(offset).putInt((int) tile[1]).putInt(0);
+            offset += tile[1];
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("The tiles take " + offset + " bytes, more than one "
+                    + "mapping can hold.");
+        }
+        index.flip();
+
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+            for (long[] tile : tiles) {
+                int depth = (int) (tile[0] >>> 48);
+                int x = (int) (tile[0] >>> 24) & 0xffffff;
+                int y = (int) tile[0] & 0xffffff;
+                File file = new File(folder, TileSource.fileName(depth, x, y));
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Maps the archive at file, or returns null if it does not exist, is not a well-formed
+     * archive of this version, or was packed from folder before its tile files last changed.
+     * If folder cannot be listed, the archive is the only copy of the tiles and is used as is.
+     */
+    static TileArchive open(File file, File folder) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int n = buffer.getInt(8);
+            long dataStart = HEADER_BYTES + (long) n * ENTRY_BYTES;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || n < 0
+                    || buffer.limit() < dataStart) {
+                return null;
+            }
+            long[] fingerprint = fingerprint(folder);
+            if (fingerprint != null && (fingerprint[0] != buffer.getInt(12)
+                    || fingerprint[1] != buffer.getLong(16))) {
+                return null;
+            }
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i += 1) {
+                int entry = HEADER_BYTES + i * ENTRY_BYTES;
+                keys[i] = buffer.getLong(entry);
+                long offset = buffer.getLong(entry + 8);
+                int length = buffer.getInt(entry + 16);
+                if (i > 0 && keys[i] <= keys[i - 1] || offset < dataStart || length < 0
+                        || offset + length > buffer.limit()) {
+                    return null;
+                }
+            }
+            return new TileArchive(buffer, keys);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Returns the number of tiles in the archive. */
+    int size() {
+        return keys.length;
+    }
+
+    @Override
+    public ByteBuffer read(int depth, int x, int y) {
+        if (!TileSource.isTile(depth, x, y)) {
+            return null;
+        }
+        int i = Arrays.binarySearch(keys, key(depth, x, y));
+        if (i < 0) {
+            return null;
+        }
+        int entry = HEADER_BYTES + i * ENTRY_BYTES;
+        /* open checked that the tile lies within the mapping, which is smaller than 2 GB. */
+        int offset = (int) buffer.getLong(entry + 8);
+        int length = buffer.getInt(entry + 16);
+        ByteBuffer tile = buffer.duplicate();
+        tile.limit(offset + length);
+        tile.position(offset);
+        return tile.slice();
+    }
+
+    @Override
+    public boolean contains(int depth, int x, int y) {
+        return TileSource.isTile(depth, x, y) && Arrays.binarySearch(keys, key(depth, x, y)) >= 0;
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Tiles stored as one PNG file each, named d{depth}_x{x}_y{y}.png, in a folder. Every read
+ * opens and reads a file; TileArchive packs the folder into one file to avoid that.
+ */
+public class TileDirectory implements TileSource {
+    private final String imgRoot;
+
+    /** @param imgRoot The folder of the tile images, ending with a separator. */
+    TileDirectory(String imgRoot) {
+        this.imgRoot = imgRoot;
+    }
+
+    private File file(int depth, int x, int y) {
+        return new File(imgRoot + TileSource.fileName(depth, x, y));
+    }
+
+    @Override
+    public ByteBuffer read(int depth, int x, int y) {
+        File file = file(depth, x, y);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean contains(int depth, int x, int y) {
+        return file(depth, x, y).isFile();
+    }
+}
@@ -0,0 +1,209 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Stitches the tiles of a RasterPlan into one image. Tiles are decoded in parallel on a pool of
+ * its own, so a big raster is not limited to the request thread, and each decoded tile is
+ * copied into the destination's pixel array one row at a time rather than drawn through
+ * Java2D. Every tile covers its own region of the destination, so the tiles can be copied in
+ * any order and the result is the same as drawing them one after another.
+ *
+ * Tiles are read from a TileSource, and kept decoded as TYPE_INT_RGB images in a tile cache,
+ * by file name, shared with the caller. Tiles deeper than the tile images (overzoom) are cut
+ * out of their depth 7 ancestors, scaled up, and cached the same way. A tile missing from the
+ * source, or whose depth 7 ancestor is, is drawn at its own depth by the fallback
+ * RoadTileRenderer, if there is one. TilePrefetcher can fill
+ * the cache ahead of need, and the mosaic counts how many of the prefetched tiles rasters go
+ * on to use.
+ */
+public class TileMosaic {
+    /** Bound on the prefetched tiles remembered for counting prefetch hits. */
+    private static final int MAX_TRACKED_PREFETCHES = 4096;
+
+    private final TileSource source;
+    private final LruCache<String, BufferedImage> tileCache;
+    private final ForkJoinPool pool;
+    private final RoadTileRenderer fallback;
+    /** Names of the prefetched tiles that no raster has used yet. */
+    private final Set<String> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    /**
+     * @param source Where to read the tiles from.
+     * @param tileCache Cache of decoded tiles by file name.
+     * @param threads Number of threads decoding tiles at once.
+     */
+    TileMosaic(TileSource source, LruCache<String, BufferedImage> tileCache, int threads) {
+        this(source, tileCache, threads, null);
+    }
+
+    /**
+     * Same as above, but draws the tiles missing from source with fallback, unless it is null.
+     */
+    TileMosaic(TileSource source, LruCache<String, BufferedImage> tileCache, int threads,
+               RoadTileRenderer fallback) {
+        this.source = source;
+        this.tileCache = tileCache;
+        this.pool = new ForkJoinPool(threads);
+        this.fallback = fallback;
+    }
+
+    /** Returns the tiles of plan stitched into one TYPE_INT_RGB image. */
+    BufferedImage draw(RasterPlan plan) {
+        int numVertTiles = plan.getNumRows();
+        int numHorizTiles = plan.getNumCols();
+        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
+                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int numTiles = numVertTiles * numHorizTiles;
+        IntConsumer copyTile = i -> {
+            int r = i / numHorizTiles;
+            int c = i % numHorizTiles;
+            blit(getTile(plan.getDepth(), plan.getMinX() + c, plan.getMinY() + r), pixels,
+                    img.getWidth(), c * MapServer.TILE_SIZE, r * MapServer.TILE_SIZE);
+        };
+        if (numTiles == 1 || pool.getParallelism() == 1) {
+            /* Handing the work to the pool would only add a thread switch. */
+            IntStream.range(0, numTiles).forEach(copyTile);
+        } else {
+            /* join() waits for every copy, and makes them visible to this thread. */
+            pool.submit(() -> IntStream.range(0, numTiles).parallel().forEach(copyTile)).join();
+        }
+        return img;
+    }
+
+    /**
+     * Copies tile into the pixel array of a TYPE_INT_RGB image of the given width, with its
+     * upper left corner at (x, y). A missing tile leaves its region black.
+     */
+    private static void blit(BufferedImage tile, int[] pixels, int width, int x, int y) {
+        if (tile == null) {
+            return;
+        }
+        int[] tilePixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        int tileWidth = tile.getWidth();
+        int rows = Math.min(tile.getHeight(), pixels.length / width - y);
+        int cols = Math.min(tileWidth, width - x);
+        for (int row = 0; row < rows; row += 1) {
+            System.arraycopy(tilePixels, row * tileWidth, pixels, (y + row) * width + x, cols);
+        }
+    }
+
+    /** Returns a decoded tile, from the tile cache if possible, or null if there is none. */
+    BufferedImage getTile(int depth, int x, int y) {
+        String name = TileSource.fileName(depth, x, y);
+        BufferedImage tile = tileCache.get(name);
+        boolean wasPrefetched = !prefetched.isEmpty() && prefetched.remove(name);
+        if (tile != null) {
+            if (wasPrefetched) {
+                prefetchHits.incrementAndGet();
+            }
+            return tile;
+        }
+        tile = load(depth, x, y);
+        if (tile != null) {
+            tileCache.put(name, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Decodes a tile, or for a depth past the deepest tile images, cuts it out of its ancestor
+     * there and scales it up. Tiles missing from the source are rendered by the fallback, and
+     * so are deeper tiles whose ancestor is missing, rather than scaled up from a rendering.
+     */
+    private BufferedImage load(int depth, int x, int y) {
+        int maxTileDepth = Rasterer.N_DEPTH_LEVELS - 1;
+        if (depth <= maxTileDepth) {
+            BufferedImage tile = decode(source.read(depth, x, y));
+            if (tile == null && fallback != null) {
+                tile = fallback.render(depth, x, y);
+            }
+            return tile;
+        }
+        int levels = depth - maxTileDepth;
+        if (fallback != null && !source.contains(maxTileDepth, x >> levels, y >> levels)) {
+            return fallback.render(depth, x, y);
+        }
+        BufferedImage ancestor = getTile(maxTileDepth, x >> levels, y >> levels);
+        if (ancestor == null) {
+            return null;
+        }
+        int size = MapServer.TILE_SIZE >> levels;
+        int sx = (x & ((1 << levels) - 1)) * size;
+        int sy = (y & ((1 << levels) - 1)) * size;
+        BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphic = tile.createGraphics();
+        graphic.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphic.drawImage(ancestor, 0, 0, MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                sx, sy, sx + size, sy + size, null);
+        graphic.dispose();
+        return tile;
+    }
+
+    /**
+     * Decodes a tile into the tile cache ahead of need, unless it is already there.
+     * @return Whether the tile was decoded.
+     */
+    boolean prefetch(int depth, int x, int y) {
+        String name = TileSource.fileName(depth, x, y);
+        if (tileCache.containsKey(name)) {
+            return false;
+        }
+        BufferedImage tile = load(depth, x, y);
+        if (tile == null) {
+            return false;
+        }
+        tileCache.put(name, tile);
+        /* Tiles evicted before they are used would stay in the set forever. */
+        if (prefetched.size() >= MAX_TRACKED_PREFETCHES) {
+            prefetched.clear();
+        }
+        prefetched.add(name);
+        return true;
+    }
+
+    /** Returns the number of tiles rasters have taken from the cache after a prefetch. */
+    long prefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * Decodes an encoded tile into a TYPE_INT_RGB image, whatever the layout of the file, so
+     * it can be copied by rows. Returns null if encoded is null or cannot be decoded.
+     */
+    static BufferedImage decode(ByteBuffer encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        BufferedImage tileImg = null;
+        try {
+            tileImg = ImageIO.read(TileSource.asInputStream(encoded));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (tileImg == null || tileImg.getType() == BufferedImage.TYPE_INT_RGB) {
+            return tileImg;
+        }
+        BufferedImage rgb = new BufferedImage(tileImg.getWidth(), tileImg.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = rgb.getGraphics();
+        graphic.drawImage(tileImg, 0, 0, null);
+        graphic.dispose();
+        return rgb;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the tile cache around the last raster, on a background thread. After a raster, users
+ * almost always pan to the next tiles over or zoom one level, so the prefetcher decodes, in
+ * this order, the ring of tiles around the raster, the tiles one level up that cover it, and
+ * the tiles one level down inside it.
+ *
+ * The queue of tiles to decode is bounded and shared by all users. A new raster's tiles join
+ * the tiles still queued for earlier rasters, which may be other users' rasters, and when the
+ * queue overflows the oldest queued tiles are cancelled to make room. Tiles of a raster that do
+ * not fit in the queue at all are dropped, least likely first. stats() reports how many
+ * prefetched tiles rasters went on to use.
+ */
+public class TilePrefetcher {
+    private final TileMosaic mosaic;
+    private final int maxDepth;
+    private final int capacity;
+    private final BlockingQueue<int[]> queue;
+    /** Tiles queued or being decoded. */
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong alreadyCached = new AtomicLong();
+
+    /**
+     * Starts the prefetcher's thread.
+     * @param mosaic The mosaic whose tile cache to fill.
+     * @param maxDepth The deepest depth there are tiles for.
+     * @param capacity The most tiles queued at once.
+     */
+    TilePrefetcher(TileMosaic mosaic, int maxDepth, int capacity) {
+        this.mosaic = mosaic;
+        this.maxDepth = maxDepth;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        Thread worker = new Thread(this::run, "tile-prefetcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues the neighbors of plan behind the tiles already queued, cancelling the oldest
+     * queued tiles if there is no room, and returns without waiting for them to be decoded.
+     */
+    void prefetch(RasterPlan plan) {
+        if (!plan.isSuccess()) {
+            return;
+        }
+        List<int[]> tiles = neighbors(plan);
+        int n = Math.min(tiles.size(), capacity);
+        dropped.addAndGet(tiles.size() - n);
+        for (int i = 0; i < n; i += 1) {
+            pending.incrementAndGet();
+            while (!queue.offer(tiles.get(i))) {
+                if (queue.poll() != null) {
+                    cancelled.incrementAndGet();
+                    pending.decrementAndGet();
+                }
+            }
+            queued.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the tiles around plan, most likely to be needed first: the ring of tiles
+     * around it at its depth, the tiles one level up that cover it, and the tiles one level
+     * down that it covers. Tiles outside of the map are left out.
+     */
+    List<int[]> neighbors(RasterPlan plan) {
+        List<int[]> tiles = new ArrayList<>();
+        int depth = plan.getDepth();
+        for (int y = plan.getMinY() - 1; y <= plan.getMaxY() + 1; y += 1) {
+            for (int x = plan.getMinX() - 1; x <= plan.getMaxX() + 1; x += 1) {
+                boolean inside = x >= plan.getMinX() && x <= plan.getMaxX()
+                        && y >= plan.getMinY() && y <= plan.getMaxY();
+                if (!inside) {
+                    addIfOnMap(tiles, depth, x, y);
+                }
+            }
+        }
+        if (depth > 0) {
+            for (int y = plan.getMinY() / 2; y <= plan.getMaxY() / 2; y += 1) {
+                for (int x = plan.getMinX() / 2; x <= plan.getMaxX() / 2; x += 1) {
+                    addIfOnMap(tiles, depth - 1, x, y);
+                }
+            }
+        }
+        if (depth < maxDepth) {
+            for (int y = 2 * plan.getMinY(); y <= 2 * plan.getMaxY() + 1; y += 1) {
+                for (int x = 2 * plan.getMinX(); x <= 2 * plan.getMaxX() + 1; x += 1) {
+                    addIfOnMap(tiles, depth + 1, x, y);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    private static void addIfOnMap(List<int[]> tiles, int depth, int x, int y) {
+        if (x >= 0 && y >= 0 && x < 1 << depth && y < 1 << depth) {
+            tiles.add(new int[]{depth, x, y});
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int[] tile;
+            try {
+                tile = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (mosaic.prefetch(tile[0], tile[1], tile[2])) {
+                    loaded.incrementAndGet();
+                } else {
+                    alreadyCached.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits until no tiles are queued or being decoded, for at most timeoutMillis.
+     * @return Whether the prefetcher became idle in time.
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (pending.get() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /** Returns the counters of the prefetcher, for reporting as JSON. */
+    Map<String, Object> stats() {
+        long hits = mosaic.prefetchHits();
+        long n = loaded.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", queued.get());
+        stats.put("cancelled", cancelled.get());
+        stats.put("dropped", dropped.get());
+        stats.put("loaded", n);
+        stats.put("already_cached", alreadyCached.get());
+        stats.put("hits", hits);
+        stats.put("hit_rate", n == 0 ? 0.0 : (double) hits / n);
+        return stats;
+    }
+}
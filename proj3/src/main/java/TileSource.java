@@ -0,0 +1,58 @@
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the encoded tile images come from: a folder of PNG files (TileDirectory) or a single
+ * memory-mapped archive of them (TileArchive). Tiles are identified by their depth and their
+ * x and y indices at that depth, as in the file names d{depth}_x{x}_y{y}.png.
+ */
+public interface TileSource {
+    /** Deepest depth of any tile, at which the x and y indices still fit in 24 bits. */
+    int MAX_DEPTH = 24;
+
+    /**
+     * Returns the encoded image of a tile, positioned at its first byte, or null if there is no
+     * such tile. The buffer is the caller's own view, but may share its contents with the source,
+     * so it must not be written to.
+     */
+    ByteBuffer read(int depth, int x, int y);
+
+    /** Returns whether there is such a tile, without reading it. */
+    boolean contains(int depth, int x, int y);
+
+    /** Returns whether depth is at most MAX_DEPTH and x and y are in [0, 2^depth). */
+    static boolean isTile(int depth, int x, int y) {
+        return depth >= 0 && depth <= MAX_DEPTH && x >= 0 && x < 1 << depth
+                && y >= 0 && y < 1 << depth;
+    }
+
+    /** Returns the file name of a tile in the tile folder. */
+    static String fileName(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
+    }
+
+    /** Returns a stream of the remaining bytes of buffer, which it consumes. */
+    static InputStream asInputStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buffer.hasRemaining()) {
+                    return len == 0 ? 0 : -1;
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+}
@@ -29,6 +29,7 @@ $(function() {
     // psueod-lock
     var getInProgress = false;
     var route_params = {};
+    var session; // route session token, sent back so the server draws this client's route
     var map;
     var dest;
     var tx = 0, ty = 0;
@@ -42,7 +43,7 @@ $(function() {
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
     const base_move_delta = 0.03;
-    const max_level = 7;
+    const max_level = 10; // Past 7, the server scales up depth 7 tiles
     const min_level = 2; // Level limits based on pulled data
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
@@ -116,7 +117,8 @@ $(function() {
                 console.log(data);
                 if (data.query_success) {
                     $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
+                    map.src = 'data:' + (data.raster_mime_type || 'image/png') + ';base64,' +
+                              data.b64_encoded_image_data;
                     console.log('Updating map with image length: ' +
                                 data.b64_encoded_image_data.length);
                     ullon_bound = data.raster_ul_lon;
@@ -170,9 +172,11 @@ $(function() {
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
+            data: session ? $.extend({session: session}, route_params) : route_params,
             success: function(data) {
                 data = JSON.parse(data);
+                session = data.session;
+                params.session = session;
                 updateImg();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
@@ -407,6 +411,7 @@ $(function() {
         $.get({
             async: true,
             url: clear_route,
+            data: session ? {session: session} : {},
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class provides a main method for measuring the latency of a running MapServer under a
+ * burst of heavy requests. RASTER_CLIENTS threads request rasters of random parts of the map
+ * back to back, each one a miss in the raster cache, while SEARCH_CLIENTS threads send cheap
+ * searches. After DURATION_SECONDS it reports the latency percentiles of each endpoint and how
+ * many requests were turned away with 503.
+ *
+ * Run it once against a server started normally and once against one started with
+ * -Dadmission=false to see what admission control does to the tail latency of the searches.
+ * The server URL is the first argument, http://localhost:4567 by default.
+ */
+public class LoadTest {
+    private static final int RASTER_CLIENTS = 64;
+    private static final int SEARCH_CLIENTS = 4;
+    private static final int DURATION_SECONDS = 20;
+    /** Pause between the searches of a client, in milliseconds. */
+    private static final int SEARCH_PAUSE_MILLIS = 20;
+    private static final int VIEWPORT_WIDTH = 1024;
+    private static final int VIEWPORT_HEIGHT = 768;
+    private static final String[] SEARCH_TERMS = {"a", "b", "berkeley", "m", "s", "t"};
+
+    /** Latencies and status counts of the requests to one endpoint. */
+    private static class Results {
+        private final String endpoint;
+        /** Milliseconds taken by the requests answered 200. */
+        private final List<Double> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        Results(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void report() {
+            List<Double> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            System.out.println(String.format(Locale.ROOT, "%-8s %6d ok, %5d 503, %4d failed; "
+                    + "p50 %7.1f ms, p90 %7.1f ms, p99 %7.1f ms, max %7.1f ms", endpoint,
+                    sorted.size(), rejected.get(), failed.get(), percentile(sorted, 0.5),
+                    percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 1.0)));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String server = args.length > 0 ? args[0] : "http://localhost:4567";
+        long deadline = System.nanoTime() + DURATION_SECONDS * 1_000_000_000L;
+        Results rasters = new Results("/raster");
+        Results searches = new Results("/search");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < RASTER_CLIENTS; i += 1) {
+            Random random = new Random(i);
+            threads.add(new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    request(server + randomRaster(random), rasters);
+                }
+            }));
+        }
+        for (int i = 0; i < SEARCH_CLIENTS; i += 1) {
+            Random random = new Random(-i);
+            threads.add(new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    request(server + "/search?term="
+                            + SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)], searches);
+                    try {
+                        Thread.sleep(SEARCH_PAUSE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println(String.format("%d raster clients and %d search clients for %d s:",
+                RASTER_CLIENTS, SEARCH_CLIENTS, DURATION_SECONDS));
+        rasters.report();
+        searches.report();
+    }
+
+    /**
+     * Returns the path of a raster request for a random part of the map, 4 tiles wide at a
+     * random depth from 2 to 7.
+     */
+    private static String randomRaster(Random random) {
+        double mapWidth = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double mapHeight = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        int depth = 2 + random.nextInt(6);
+        double width = 4 * mapWidth / (1 << depth);
+        double height = width * VIEWPORT_HEIGHT / VIEWPORT_WIDTH * mapHeight / mapWidth;
+        double ullon = MapServer.ROOT_ULLON + random.nextDouble() * (mapWidth - width);
+        double ullat = MapServer.ROOT_ULLAT - random.nextDouble() * (mapHeight - height);
+        return String.format(Locale.ROOT, "/raster?ullon=%.9f&ullat=%.9f&lrlon=%.9f"
+                + "&lrlat=%.9f&w=%d&h=%d", ullon, ullat, ullon + width, ullat - height,
+                VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+    }
+
+    /** Sends a GET request, reads the whole response, and records how it went. */
+    private static void request(String url, Results results) {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream()
+                    : connection.getErrorStream()) {
+                byte[] buffer = new byte[8192];
+                while (in != null && in.read(buffer) >= 0) {
+                    continue;
+                }
+            }
+            if (status == 200) {
+                results.latencies.add((System.nanoTime() - start) / 1e6);
+            } else if (status == 503) {
+                results.rejected.incrementAndGet();
+                /* Back off as the server asks, rather than retrying at once. */
+                String retryAfter = connection.getHeaderField("Retry-After");
+                Thread.sleep(retryAfter == null ? 1000 : 1000 * Long.parseLong(retryAfter));
+            } else {
+                results.failed.incrementAndGet();
+            }
+        } catch (IOException | InterruptedException | NumberFormatException e) {
+            results.failed.incrementAndGet();
+        }
+    }
+
+    /** Returns the p-th quantile of sorted, or 0 if it is empty. */
+    private static double percentile(List<Double> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank)));
+    }
+}
@@ -0,0 +1,174 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import javax.imageio.ImageIO;
+
+/**
+ * This class provides a main method for measuring how long it takes to stitch the tiles of a
+ * raster, for 1x1, 4x4 and 8x8 grids of tiles and with 1 thread up to one per core. Cold runs
+ * decode every tile from disk; warm runs take the decoded tiles from the tile cache, so they
+ * only time copying pixels. Drawing the tiles sequentially through Graphics.drawImage, as the
+ * server used to, is timed for comparison. If TileArchive has packed the tiles, cold runs and
+ * plain reads of the encoded tiles are also timed with the archive instead of the folder.
+ *
+ * It then reports how long encoding the 4x4 raster takes, and how many Base64 bytes it makes,
+ * with each of the ENCODERS.
+ */
+public class RasterBenchmark {
+    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    private static final String TILE_ARCHIVE_PATH = "../library-sp18/data/proj3_imgs"
+            + TileArchive.EXTENSION;
+    /** Viewport widths over the whole map that plan depth 0, 2 and 3 rasters. */
+    private static final int[] WIDTHS = {256, 1024, 2048};
+    private static final int NUM_WARMUP_ROUNDS = 3;
+    private static final int NUM_ROUNDS = 20;
+    private static final RasterEncoder[] ENCODERS = {RasterEncoder.png(1),
+        RasterEncoder.png(RasterEncoder.DEFAULT_PNG_LEVEL), RasterEncoder.png(6),
+        RasterEncoder.png(9), RasterEncoder.jpeg(0.5f), RasterEncoder.jpeg(0.75f),
+        RasterEncoder.jpeg(0.85f), RasterEncoder.jpeg(0.95f)};
+
+    public static void main(String[] args) throws IOException {
+        Rasterer rasterer = new Rasterer();
+        int cores = Runtime.getRuntime().availableProcessors();
+        TileSource directory = new TileDirectory(IMG_ROOT);
+        TileArchive archive = TileArchive.open(new File(TILE_ARCHIVE_PATH), new File(IMG_ROOT));
+        for (int w : WIDTHS) {
+            RasterPlan plan = rasterer.plan(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                    MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, w);
+            String grid = plan.getNumRows() + "x" + plan.getNumCols();
+            LruCache<String, BufferedImage> drawImageCache =
+                    new LruCache<>(Long.MAX_VALUE, RasterBenchmark::weigh);
+            System.out.println(String.format("%s grid, sequential drawImage: %.2f ms cold, "
+                    + "%.3f ms warm.", grid, timeDrawImage(plan, null),
+                    timeDrawImage(plan, drawImageCache)));
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                LruCache<String, BufferedImage> noCache = new LruCache<>(0, RasterBenchmark::weigh);
+                LruCache<String, BufferedImage> cache =
+                        new LruCache<>(Long.MAX_VALUE, RasterBenchmark::weigh);
+                double cold = time(new TileMosaic(directory, noCache, threads), plan);
+                double warm = time(new TileMosaic(directory, cache, threads), plan);
+                System.out.println(String.format("%s grid, %d threads: %.2f ms cold, "
+                        + "%.3f ms warm.", grid, threads, cold, warm));
+                if (archive != null) {
+                    System.out.println(String.format("%s grid, %d threads, archive: %.2f ms "
+                            + "cold.", grid, threads,
+                            time(new TileMosaic(archive, noCache, threads), plan)));
+                }
+            }
+            if (archive != null) {
+                System.out.println(String.format("%s grid, reading the encoded tiles: "
+                        + "%.1f us from the folder, %.1f us from the archive.", grid,
+                        timeReads(directory, plan), timeReads(archive, plan)));
+            }
+        }
+
+        RasterPlan plan = rasterer.plan(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, WIDTHS[1]);
+        BufferedImage img = new TileMosaic(directory,
+                new LruCache<>(Long.MAX_VALUE, RasterBenchmark::weigh), 1).draw(plan);
+        for (RasterEncoder encoder : ENCODERS) {
+            for (int i = 0; i < NUM_WARMUP_ROUNDS; i += 1) {
+                encoder.encodeBase64(img);
+            }
+            long start = System.nanoTime();
+            int bytes = 0;
+            for (int i = 0; i < NUM_ROUNDS; i += 1) {
+                bytes = encoder.encodeBase64(img).length;
+            }
+            System.out.println(String.format("Encoded the 4x4 raster as %s: %.2f ms, "
+                    + "%d Base64 bytes.", encoder, (System.nanoTime() - start) / 1e6 / NUM_ROUNDS,
+                    bytes));
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_ROUNDS; i += 1) {
+            os.reset();
+            ImageIO.write(img, "png", os);
+            Base64.getEncoder().encodeToString(os.toByteArray());
+        }
+        System.out.println(String.format("Encoded the 4x4 raster with ImageIO.write and "
+                + "Base64.encodeToString: %.2f ms.",
+                (System.nanoTime() - start) / 1e6 / NUM_ROUNDS));
+    }
+
+    private static long weigh(BufferedImage img) {
+        return 4L * img.getWidth() * img.getHeight();
+    }
+
+    /** Returns the mean time in milliseconds that mosaic takes to draw plan. */
+    private static double time(TileMosaic mosaic, RasterPlan plan) {
+        for (int i = 0; i < NUM_WARMUP_ROUNDS; i += 1) {
+            mosaic.draw(plan);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_ROUNDS; i += 1) {
+            mosaic.draw(plan);
+        }
+        return (System.nanoTime() - start) / 1e6 / NUM_ROUNDS;
+    }
+
+    /** Returns the mean time in microseconds to read the encoded tiles of plan from source. */
+    private static double timeReads(TileSource source, RasterPlan plan) {
+        long nanos = 0;
+        for (int i = 0; i < NUM_WARMUP_ROUNDS + NUM_ROUNDS; i += 1) {
+            long start = System.nanoTime();
+            for (int y = plan.getMinY(); y <= plan.getMaxY(); y += 1) {
+                for (int x = plan.getMinX(); x <= plan.getMaxX(); x += 1) {
+                    ByteBuffer png = source.read(plan.getDepth(), x, y);
+                    /* Touch every page, as decoding would. */
+                    for (int j = 0; j < png.limit(); j += 4096) {
+                        png.get(j);
+                    }
+                }
+            }
+            if (i >= NUM_WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        return nanos / 1e3 / NUM_ROUNDS;
+    }
+
+    /** Decodes the tile file at path, as the server used to. */
+    private static BufferedImage readFile(String path) {
+        try {
+            return ImageIO.read(new File(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the mean time in milliseconds to draw the tiles of plan one by one, decoding them
+     * or taking them from cache if it is not null.
+     */
+    private static double timeDrawImage(RasterPlan plan,
+                                        LruCache<String, BufferedImage> cache) {
+        long nanos = 0;
+        for (int i = 0; i < NUM_WARMUP_ROUNDS + NUM_ROUNDS; i += 1) {
+            long start = System.nanoTime();
+            String[][] renderGrid = plan.renderGrid();
+            BufferedImage img = new BufferedImage(renderGrid[0].length * MapServer.TILE_SIZE,
+                    renderGrid.length * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics graphic = img.getGraphics();
+            for (int r = 0; r < renderGrid.length; r += 1) {
+                for (int c = 0; c < renderGrid[0].length; c += 1) {
+                    String path = IMG_ROOT + renderGrid[r][c];
+                    BufferedImage tile = cache == null ? readFile(path)
+                            : cache.get(path, RasterBenchmark::readFile);
+                    graphic.drawImage(tile, c * MapServer.TILE_SIZE, r * MapServer.TILE_SIZE,
+                            null);
+                }
+            }
+            graphic.dispose();
+            if (i >= NUM_WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        return nanos / 1e6 / NUM_ROUNDS;
+    }
+}
@@ -0,0 +1,42 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This class provides a main method for measuring how long RoadTileRenderer takes to draw a
+ * tile of the Berkeley graph at each depth. It renders every tile down to the depth given as
+ * the first argument (default 7). With a folder as the second argument, the tiles are also
+ * written there, named as the tile images are.
+ */
+public class RoadTileRendererBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int DEFAULT_MAX_DEPTH = 7;
+
+    public static void main(String[] args) throws IOException {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_DEPTH;
+        File folder = args.length > 1 ? new File(args[1]) : null;
+        RoadTileRenderer renderer = new RoadTileRenderer(new GraphDB(OSM_DB_PATH),
+                MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON,
+                MapServer.ROOT_LRLAT);
+        /* Let the JIT compile the drawing code first. */
+        for (int i = 0; i < 2000; i += 1) {
+            renderer.render(i % 2 == 0 ? 2 : 6, i % 4, i / 4 % 4);
+        }
+        for (int depth = 0; depth <= maxDepth; depth += 1) {
+            long start = System.nanoTime();
+            int n = 1 << depth;
+            for (int x = 0; x < n; x += 1) {
+                for (int y = 0; y < n; y += 1) {
+                    BufferedImage tile = renderer.render(depth, x, y);
+                    if (folder != null) {
+                        ImageIO.write(tile, "png",
+                                new File(folder, TileSource.fileName(depth, x, y)));
+                    }
+                }
+            }
+            System.out.println(String.format("Depth %d: %d tiles, %.2f ms per tile.", depth,
+                    n * n, (System.nanoTime() - start) / 1e6 / (n * n)));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class provides a main method for comparing the throughput of a running MapServer on
+ * TRIPS routes sent as single /route requests with that on the same number of routes sent as one
+ * /route/batch request. The single requests are sent one after another, and then from
+ * CLIENTS threads at once. Every run routes its own random trips, so that none of them is
+ * answered from the route cache.
+ *
+ * The server URL is the first argument, http://localhost:4567 by default, and the routing
+ * algorithm the optional second argument, e.g. bidirectional_astar.
+ */
+public class RouteBatchBenchmark {
+    private static final int TRIPS = 500;
+    private static final int CLIENTS = 8;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String server = args.length > 0 ? args[0] : "http://localhost:4567";
+        String algorithm = args.length > 1 ? "&algorithm=" + args[1] : "";
+        String batchUrl = server + "/route/batch" + (args.length > 1 ? "?algorithm=" + args[1]
+                : "");
+        Random random = new Random(0);
+
+        /* Warm up the server, so that the first run does not pay for JIT compilation. */
+        sendBatch(batchUrl, randomTrips(random, TRIPS));
+
+        double[][] trips = randomTrips(random, TRIPS);
+        long start = System.nanoTime();
+        for (double[] trip : trips) {
+            get(server + "/route?" + routeParams(trip) + algorithm);
+        }
+        report("single, sequential", System.nanoTime() - start);
+
+        double[][] concurrentTrips = randomTrips(random, TRIPS);
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i += 1) {
+            threads.add(new Thread(() -> {
+                for (int j = next.getAndIncrement(); j < TRIPS; j = next.getAndIncrement()) {
+                    try {
+                        get(server + "/route?" + routeParams(concurrentTrips[j]) + algorithm);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+        }
+        start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report("single, " + CLIENTS + " clients", System.nanoTime() - start);
+
+        double[][] batchTrips = randomTrips(random, TRIPS);
+        start = System.nanoTime();
+        sendBatch(batchUrl, batchTrips);
+        report("batch", System.nanoTime() - start);
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format(Locale.ROOT, "%-20s %4d routes in %8.1f ms, "
+                + "%7.1f routes/s", name, TRIPS, nanos / 1e6, TRIPS / (nanos / 1e9)));
+    }
+
+    /** Returns n trips between random points on the map, as start and end longitude and
+     * latitude. */
+    private static double[][] randomTrips(Random random, int n) {
+        double[][] trips = new double[n][];
+        for (int i = 0; i < n; i += 1) {
+            trips[i] = new double[] {randomLon(random), randomLat(random),
+                randomLon(random), randomLat(random)};
+        }
+        return trips;
+    }
+
+    private static double randomLon(Random random) {
+        return MapServer.ROOT_ULLON
+                + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+    }
+
+    private static double randomLat(Random random) {
+        return MapServer.ROOT_LRLAT
+                + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+    }
+
+    private static String routeParams(double[] trip) {
+        return String.format(Locale.ROOT, "start_lon=%.9f&start_lat=%.9f&end_lon=%.9f"
+                + "&end_lat=%.9f", trip[0], trip[1], trip[2], trip[3]);
+    }
+
+    /** Sends trips as the body of a batch route request, and reads the whole response. */
+    private static void sendBatch(String url, double[][] trips) throws IOException {
+        StringBuilder body = new StringBuilder("[");
+        for (double[] trip : trips) {
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            body.append(String.format(Locale.ROOT, "{\"start_lon\":%.9f,\"start_lat\":%.9f,"
+                    + "\"end_lon\":%.9f,\"end_lat\":%.9f}", trip[0], trip[1], trip[2], trip[3]));
+        }
+        body.append(']');
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        read(connection);
+    }
+
+    private static void get(String url) throws IOException {
+        read((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    /** Reads the whole response, and throws if it is not 200. */
+    private static void read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream()
+                : connection.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            while (in != null && in.read(buffer) >= 0) {
+                continue;
+            }
+        }
+        if (status != 200) {
+            throw new IOException("Request failed with " + status + ": " + connection.getURL());
+        }
+    }
+}
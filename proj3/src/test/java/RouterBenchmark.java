@@ -0,0 +1,188 @@
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class provides a main method for measuring the memory footprint of GraphDB and the
+ * latency of Router.shortestPath on the bundled OSM file. Queries are the routes listed in
+ * path_params.txt followed by random routes inside the map bounds. It also compares the
+ * search algorithms by the number of vertices they settle and their latency per query,
+ * excluding snapping.
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int NUM_RANDOM_QUERIES = 500;
+    private static final int NUM_WARMUP_ROUNDS = 3;
+    /** There are only a few TestRouter queries, so they are timed over many rounds. */
+    private static final int NUM_TEST_ROUTER_ROUNDS = 200;
+    /** Snapping is so cheap that it takes many more rounds for the JIT to settle. */
+    private static final int NUM_SNAPPING_WARMUP_ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(OSM_DB_PATH);
+        long loadNanos = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        System.out.println(String.format("Loaded graph in %.1f ms, retaining %.2f MB of heap.",
+                loadNanos / 1e6, (heapAfter - heapBefore) / 1e6));
+
+        List<double[]> queries = queries();
+        for (int i = 0; i < NUM_SNAPPING_WARMUP_ROUNDS; i += 1) {
+            runSnapping(g, queries);
+        }
+        long snapNanos = runSnapping(g, queries);
+        System.out.println(String.format("Snapped %d points, %.0f ns per point.",
+                2 * queries.size(), snapNanos / 2.0 / queries.size()));
+
+        for (int i = 0; i < NUM_WARMUP_ROUNDS; i += 1) {
+            runQueries(g, queries);
+        }
+        long nanos = runQueries(g, queries);
+        System.out.println(String.format("Routed %d queries, %.1f us per query.",
+                queries.size(), nanos / 1e3 / queries.size()));
+        List<double[]> testQueries = testRouterQueries();
+        long testNanos = 0;
+        for (int i = 0; i < NUM_TEST_ROUTER_ROUNDS; i += 1) {
+            testNanos += runQueries(g, testQueries);
+        }
+        System.out.println(String.format("Routed the %d TestRouter queries, %.1f us per query.",
+                testQueries.size(),
+                testNanos / 1e3 / testQueries.size() / NUM_TEST_ROUTER_ROUNDS));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            double perSecond = runParallel(g, queries, threads);
+            System.out.println(String.format("%d threads: %.0f queries per second.",
+                    threads, perSecond));
+        }
+
+        File chFile = new File(OSM_DB_PATH + ContractionHierarchy.EXTENSION);
+        ContractionHierarchy ch = ContractionHierarchy.read(chFile, g);
+        if (ch == null) {
+            start = System.nanoTime();
+            ch = ContractionHierarchy.build(g);
+            System.out.println(String.format("Built contraction hierarchy in %.1f s, "
+                    + "%d upward edges.", (System.nanoTime() - start) / 1e9, ch.numEdges()));
+        }
+        g.setContractionHierarchy(ch);
+        int[][] snapped = new int[queries.size()][];
+        for (int i = 0; i < queries.size(); i += 1) {
+            double[] q = queries.get(i);
+            snapped[i] = new int[]{g.index(g.closest(q[0], q[1])),
+                g.index(g.closest(q[2], q[3]))};
+        }
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            for (int i = 0; i < NUM_WARMUP_ROUNDS; i += 1) {
+                runAlgorithm(g, snapped, algorithm);
+            }
+            long settled = 0;
+            SearchWorkspace ws = g.acquireWorkspace();
+            for (int[] q : snapped) {
+                ws.reset();
+                Router.shortestPath(g, ws, q[0], q[1], algorithm);
+                settled += ws.settled();
+            }
+            g.releaseWorkspace(ws);
+            long algorithmNanos = runAlgorithm(g, snapped, algorithm);
+            System.out.println(String.format("%s: %.1f us and %.0f settled vertices per query.",
+                    algorithm, algorithmNanos / 1e3 / snapped.length,
+                    (double) settled / snapped.length));
+        }
+    }
+
+    private static long runAlgorithm(GraphDB g, int[][] snapped, Router.Algorithm algorithm) {
+        long start = System.nanoTime();
+        SearchWorkspace ws = g.acquireWorkspace();
+        for (int[] q : snapped) {
+            ws.reset();
+            Router.shortestPath(g, ws, q[0], q[1], algorithm);
+        }
+        g.releaseWorkspace(ws);
+        return System.nanoTime() - start;
+    }
+
+    private static long runSnapping(GraphDB g, List<double[]> queries) {
+        long start = System.nanoTime();
+        for (double[] q : queries) {
+            g.closest(q[0], q[1]);
+            g.closest(q[2], q[3]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Routes every query once on each of the given number of threads, and returns the total
+     * throughput in queries per second. */
+    private static double runParallel(GraphDB g, List<double[]> queries, int threads)
+            throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Long>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i += 1) {
+                tasks.add(() -> runQueries(g, queries));
+            }
+            long start = System.nanoTime();
+            for (Future<Long> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+            return threads * queries.size() / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long runQueries(GraphDB g, List<double[]> queries) {
+        long start = System.nanoTime();
+        for (double[] q : queries) {
+            Router.shortestPath(g, q[0], q[1], q[2], q[3]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Returns the path_params.txt routes followed by seeded random routes, each as
+     * {start_lon, start_lat, end_lon, end_lat}. */
+    static List<double[]> queries() throws Exception {
+        List<double[]> queries = testRouterQueries();
+        Random random = new Random(61);
+        double lonSpan = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double latSpan = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        for (int i = 0; i < NUM_RANDOM_QUERIES; i += 1) {
+            queries.add(new double[]{MapServer.ROOT_ULLON + random.nextDouble() * lonSpan,
+                MapServer.ROOT_LRLAT + random.nextDouble() * latSpan,
+                MapServer.ROOT_ULLON + random.nextDouble() * lonSpan,
+                MapServer.ROOT_LRLAT + random.nextDouble() * latSpan});
+        }
+        return queries;
+    }
+
+    /** Returns the routes of path_params.txt, which TestRouter checks. */
+    static List<double[]> testRouterQueries() throws Exception {
+        List<double[]> queries = new ArrayList<>();
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        for (int i = 2; i + 3 < lines.size(); i += 4) { // ignore comment lines
+            queries.add(new double[]{Double.parseDouble(lines.get(i)),
+                Double.parseDouble(lines.get(i + 1)), Double.parseDouble(lines.get(i + 2)),
+                Double.parseDouble(lines.get(i + 3))});
+        }
+        return queries;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i += 1) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
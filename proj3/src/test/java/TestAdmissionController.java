@@ -0,0 +1,102 @@
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that AdmissionController admits requests up to the limit, queues a bounded number of
+ * them, and rejects the rest, and that MapServer refuses limits its thread pool cannot hold.
+ */
+public class TestAdmissionController {
+    @Test
+    public void testLimits() throws Exception {
+        AdmissionController admission = new AdmissionController();
+        admission.limit("/raster", 1, 1, 50);
+        assertTrue("Endpoints without a limit are admitted", admission.acquire("/search"));
+
+        assertTrue(admission.acquire("/raster"));
+        assertFalse("Waited too long", admission.acquire("/raster"));
+
+        /* One request waits for the running one, so the next finds the queue full. */
+        AtomicBoolean waiterAdmitted = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        AdmissionController slow = new AdmissionController();
+        slow.limit("/raster", 1, 1, 10000);
+        assertTrue(slow.acquire("/raster"));
+        Thread waiter = new Thread(() -> {
+            try {
+                waiterAdmitted.set(slow.acquire("/raster"));
+            } catch (InterruptedException e) {
+                return;
+            }
+            done.countDown();
+        });
+        waiter.start();
+        while (!rasterStats(slow).get("queued").equals(1)) {
+            Thread.sleep(1);
+        }
+        assertFalse("Queue full", slow.acquire("/raster"));
+        slow.release("/raster");
+        done.await();
+        assertTrue(waiterAdmitted.get());
+
+        Map<?, ?> stats = rasterStats(slow);
+        assertEquals(2L, stats.get("admitted"));
+        assertEquals(1L, stats.get("waited"));
+        assertEquals(1L, stats.get("rejected_queue_full"));
+        assertEquals(1L, rasterStats(admission).get("rejected_timeout"));
+    }
+
+    @Test
+    public void testServerThreads() {
+        AdmissionController admission = new AdmissionController();
+        admission.limit("/raster", 2, 3, 50);
+        admission.limit("/route", 1, 4, 50);
+        assertEquals(10, admission.maxHeldThreads());
+        MapServer.checkServerThreads(null);
+        MapServer.checkServerThreads(admission);
+
+        admission.limit("/tiles", 1000, 1000, 50);
+        try {
+            MapServer.checkServerThreads(admission);
+            fail("The limits take more server threads than the pool has");
+        } catch (IllegalStateException expected) {
+            /* The server would not start. */
+        }
+    }
+
+    @Test
+    public void testServerLimitsFitThePool() {
+        MapServer.initialize();
+        Map<?, ?> limits = (Map<?, ?>) MapServer.getStats().get("admission");
+        Map<?, ?> batches = (Map<?, ?>) limits.get("/route/batch");
+        assertEquals(1, batches.get("max_concurrent"));
+        assertEquals(4, batches.get("max_queued"));
+
+        /* The server's own limits, batches included, leave the reserve free. */
+        AdmissionController copy = new AdmissionController();
+        for (Map.Entry<?, ?> entry : limits.entrySet()) {
+            Map<?, ?> limit = (Map<?, ?>) entry.getValue();
+            copy.limit((String) entry.getKey(), (Integer) limit.get("max_concurrent"),
+                    (Integer) limit.get("max_queued"), 50);
+        }
+        MapServer.checkServerThreads(copy);
+        copy.limit("/route/batch/extra", 1, 1, 50);
+        try {
+            MapServer.checkServerThreads(copy);
+            fail("Another limit needs a larger pool");
+        } catch (IllegalStateException expected) {
+            /* The pool has no room beyond the limits it was sized for. */
+        }
+    }
+
+    private static Map<?, ?> rasterStats(AdmissionController admission) {
+        return (Map<?, ?>) admission.stats().get("/raster");
+    }
+}
@@ -0,0 +1,126 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a graph loaded from a snapshot matches the graph parsed from XML, and that
+ * stale or corrupt snapshots are ignored.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        source = folder.newFile("tiny-clean.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_TINY), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        snapshot = new File(source.getPath() + GraphSnapshot.EXTENSION);
+    }
+
+    @Test
+    public void testSnapshotMatchesParsedGraph() {
+        GraphDB parsed = new GraphDB(source.getPath());
+        assertTrue("Parsing should write a snapshot", snapshot.isFile());
+
+        GraphDB loaded = new GraphDB(source.getPath());
+        assertEquals(toList(parsed.vertices()), toList(loaded.vertices()));
+        for (long v : parsed.vertices()) {
+            assertEquals(toList(parsed.adjacent(v)), toList(loaded.adjacent(v)));
+            assertEquals(parsed.lon(v), loaded.lon(v), 0.0);
+            assertEquals(parsed.lat(v), loaded.lat(v), 0.0);
+        }
+        assertEquals(parsed.numWays(), loaded.numWays());
+        for (int way = 0; way < parsed.numWays(); way += 1) {
+            assertEquals(parsed.wayName(way), loaded.wayName(way));
+            assertEquals(parsed.wayHighway(way), loaded.wayHighway(way));
+        }
+        assertEquals(parsed.closest(0.4, 38.51), loaded.closest(0.4, 38.51));
+        assertEquals(Router.shortestPath(parsed, 0.4, 38.1, 0.4, 38.6),
+                Router.shortestPath(loaded, 0.4, 38.1, 0.4, 38.6));
+        List<Long> route = Router.shortestPath(parsed, 0.2, 38.2, 0.6, 38.6);
+        assertEquals(Router.routeDirections(parsed, route), Router.routeDirections(loaded, route));
+    }
+
+    @Test
+    public void testLandmarksAreSavedAndRepicked() {
+        GraphDB parsed = new GraphDB(source.getPath(), 3);
+        GraphDB loaded = new GraphDB(source.getPath(), 3);
+        assertEquals(3, loaded.landmarks().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(parsed.landmarks().vertex(i), loaded.landmarks().vertex(i));
+            for (int v = 0; v < parsed.size(); v++) {
+                assertEquals(parsed.landmarks().distance(i, v),
+                        loaded.landmarks().distance(i, v), 0.0);
+            }
+        }
+
+        GraphDB more = new GraphDB(source.getPath(), 5);
+        assertEquals(5, more.landmarks().size());
+        assertEquals(5, new GraphDB(source.getPath(), 5).landmarks().size());
+        assertEquals(null, new GraphDB(source.getPath(), 0).landmarks());
+    }
+
+    /* GraphSnapshot.read rejects stale or corrupt snapshots before touching the graph, so
+     * these tests pass no graph at all. */
+    @Test
+    public void testStaleSnapshotIsIgnored() {
+        new GraphDB(source.getPath());
+        assertTrue(source.setLastModified(source.lastModified() - 60000));
+        assertFalse(GraphSnapshot.read(null, source, snapshot));
+
+        GraphDB reparsed = new GraphDB(source.getPath());
+        assertEquals(7, toList(reparsed.vertices()).size());
+        assertEquals("Reparsing should refresh the snapshot",
+                source.lastModified(), readSourceStamp());
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        new GraphDB(source.getPath());
+        try (RandomAccessFile f = new RandomAccessFile(snapshot, "rw")) {
+            f.seek(f.length() - 1);
+            int b = f.read();
+            f.seek(f.length() - 1);
+            f.write(b ^ 0xff);
+        }
+        assertFalse(GraphSnapshot.read(null, source, snapshot));
+        assertEquals(7, toList(new GraphDB(source.getPath()).vertices()).size());
+    }
+
+    /** Returns the source modification time recorded in the snapshot header. */
+    private long readSourceStamp() {
+        try (RandomAccessFile f = new RandomAccessFile(snapshot, "r")) {
+            f.seek(16);
+            return Long.reverseBytes(f.readLong());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Long> toList(Iterable<Long> it) {
+        List<Long> list = new ArrayList<>();
+        for (long x : it) {
+            list.add(x);
+        }
+        return list;
+    }
+}
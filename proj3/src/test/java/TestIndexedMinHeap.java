@@ -0,0 +1,73 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks IndexedMinHeap against a linear scan over an array of priorities.
+ */
+public class TestIndexedMinHeap {
+    private static final int CAPACITY = 200;
+    private static final int NUM_OPERATIONS = 20000;
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(5);
+        IndexedMinHeap heap = new IndexedMinHeap(CAPACITY);
+        double[] expected = new double[CAPACITY];
+        Arrays.fill(expected, Double.NaN);
+        for (int i = 0; i < NUM_OPERATIONS; i++) {
+            int op = random.nextInt(10);
+            if (op < 6) {
+                int v = random.nextInt(CAPACITY);
+                double priority = random.nextInt(1000) / 10.0;
+                heap.add(v, priority);
+                if (Double.isNaN(expected[v]) || priority < expected[v]) {
+                    expected[v] = priority;
+                }
+            } else if (op < 9) {
+                int min = -1;
+                for (int v = 0; v < CAPACITY; v++) {
+                    if (!Double.isNaN(expected[v]) && (min == -1 || expected[v] < expected[min])) {
+                        min = v;
+                    }
+                }
+                assertEquals(min == -1, heap.isEmpty());
+                if (min != -1) {
+                    assertEquals(expected[min], heap.peekPriority(), 0.0);
+                    int v = heap.poll();
+                    assertEquals(expected[min], expected[v], 0.0);
+                    assertFalse(heap.contains(v));
+                    expected[v] = Double.NaN;
+                }
+            } else if (random.nextInt(20) == 0) {
+                heap.clear();
+                Arrays.fill(expected, Double.NaN);
+            }
+            int size = 0;
+            for (double p : expected) {
+                if (!Double.isNaN(p)) {
+                    size++;
+                }
+            }
+            assertEquals(size, heap.size());
+        }
+    }
+
+    @Test
+    public void testClearForgetsVertices() {
+        IndexedMinHeap heap = new IndexedMinHeap(4);
+        heap.add(2, 1.0);
+        heap.add(3, 0.5);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        assertFalse(heap.contains(2));
+        heap.add(2, 7.0);
+        assertEquals(2, heap.poll());
+        assertTrue(heap.isEmpty());
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the eviction order, weight budget and counters of LruCache.
+ */
+public class TestLruCache {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        cache.put("a", "1234");
+        cache.put("b", "1234");
+        assertEquals("1234", cache.get("a"));
+        cache.put("c", "1234");
+        assertNull("b was least recently used", cache.get("b"));
+        assertEquals("1234", cache.get("a"));
+        assertEquals("1234", cache.get("c"));
+        assertEquals(8, cache.weight());
+        assertEquals(1, cache.evictions());
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testWeightBudget() {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        cache.put("big", "12345678901");
+        assertEquals("Values heavier than the budget are not cached", 0, cache.size());
+        cache.put("a", "123");
+        cache.put("a", "123456");
+        assertEquals(6, cache.weight());
+        cache.put("b", "12345");
+        assertEquals(1, cache.size());
+        assertEquals(5, cache.weight());
+        cache.invalidateAll();
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void testInvalidateOnlyTheGivenValue() {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        String old = new String("123");
+        cache.put("a", old);
+        cache.put("a", "1234");
+        assertFalse(cache.invalidate("a", old));
+        assertEquals(4, cache.weight());
+        assertTrue(cache.invalidate("a", cache.get("a")));
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLoaderIsCalledOnMissOnly() {
+        LruCache<Integer, String> cache = new LruCache<>(100, String::length);
+        int[] loads = new int[1];
+        for (int i = 0; i < 10; i++) {
+            assertEquals("7", cache.get(7, k -> {
+                loads[0]++;
+                return Integer.toString(k);
+            }));
+        }
+        assertEquals(1, loads[0]);
+        assertNull(cache.get(8, k -> null));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testConcurrentAccessKeepsWeightConsistent() throws Exception {
+        LruCache<Integer, String> cache = new LruCache<>(500, String::length);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final Random random = new Random(t);
+                futures.add(pool.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(200);
+                        String value = cache.get(key, k -> new String(new char[k % 20 + 1]));
+                        assertEquals(key % 20 + 1, value.length());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long weight = 0;
+        for (int key = 0; key < 200; key++) {
+            String value = cache.get(key);
+            weight += value == null ? 0 : value.length();
+        }
+        assertEquals(weight, cache.weight());
+        assertTrue(cache.weight() <= 500);
+        assertEquals(8 * 20000 + 200, cache.hits() + cache.misses());
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that MapServer caches finished rasters by their tiles and route version: the same
+ * query is drawn once, a new route is drawn again, and failed plans are never cached.
+ */
+public class TestRasterCache {
+    private static final Rasterer RASTERER = new Rasterer(10);
+
+    @BeforeClass
+    public static void setUp() {
+        MapServer.initialize();
+    }
+
+    @Test
+    public void testIdenticalQueryHits() {
+        RasterPlan plan = RASTERER.plan(-122.2419, 37.8769, -122.2319, 37.8669, 512);
+        long hits = counter("hits");
+        long misses = counter("misses");
+        MapServer.RasterImage first = MapServer.getRasterImage(plan,
+                RouteSessions.Route.NONE);
+        assertNotNull(first);
+        assertEquals(misses + 1, counter("misses"));
+        /* An equal plan planned again, as for a repeated request. */
+        RasterPlan again = RASTERER.plan(-122.2419, 37.8769, -122.2319, 37.8669, 512);
+        assertSame(first, MapServer.getRasterImage(again, RouteSessions.Route.NONE));
+        assertEquals(hits + 1, counter("hits"));
+    }
+
+    @Test
+    public void testNewRouteVersionMisses() {
+        RasterPlan plan = RASTERER.plan(-122.2519, 37.8769, -122.2419, 37.8669, 512);
+        RouteSessions sessions = new RouteSessions(60000, 1 << 20);
+        String token = sessions.set(null, Collections.emptyList());
+        RouteSessions.Route route = sessions.get(token);
+        MapServer.RasterImage first = MapServer.getRasterImage(plan, route);
+        assertSame(first, MapServer.getRasterImage(plan, route));
+
+        /* Setting a route, even the same one, gives it a new version. */
+        sessions.set(token, Collections.emptyList());
+        RouteSessions.Route newRoute = sessions.get(token);
+        long misses = counter("misses");
+        assertNotSame(first, MapServer.getRasterImage(plan, newRoute));
+        assertEquals(misses + 1, counter("misses"));
+    }
+
+    @Test
+    public void testFailedPlansAreNotCached() {
+        RasterPlan plan = RASTERER.plan(10, 10, 11, 9, 512);
+        assertFalse(plan.isSuccess());
+        long entries = counter("entries");
+        long misses = counter("misses");
+        assertNull(MapServer.getRasterImage(plan, RouteSessions.Route.NONE));
+        assertEquals(entries, counter("entries"));
+        assertEquals("Failed plans do not even look in the cache", misses, counter("misses"));
+    }
+
+    /** Returns a counter of the raster cache from the server's stats. */
+    @SuppressWarnings("unchecked")
+    private static long counter(String name) {
+        Map<String, Object> cache = (Map<String, Object>) MapServer.getStats().get("raster_cache");
+        return ((Number) cache.get(name)).longValue();
+    }
+}
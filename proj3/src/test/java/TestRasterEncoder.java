@@ -0,0 +1,87 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips rasters through RasterEncoder and checks that the decoded images match, and that
+ * settings out of range are rejected.
+ */
+public class TestRasterEncoder {
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 32;
+
+    @Test
+    public void testPngIsLossless() throws IOException {
+        BufferedImage img = image();
+        for (int level : new int[]{0, 9}) {
+            RasterEncoder encoder = RasterEncoder.png(level);
+            assertEquals("image/png", encoder.mimeType());
+            BufferedImage decoded = decode(encoder.encodeBase64(img));
+            assertEquals(WIDTH, decoded.getWidth());
+            assertEquals(HEIGHT, decoded.getHeight());
+            for (int y = 0; y < HEIGHT; y += 1) {
+                for (int x = 0; x < WIDTH; x += 1) {
+                    assertEquals("level " + level + " at " + x + ", " + y,
+                            img.getRGB(x, y), decoded.getRGB(x, y));
+                }
+            }
+            assertEquals(1L, encoder.stats().get("encodes"));
+        }
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        BufferedImage img = image();
+        RasterEncoder encoder = RasterEncoder.jpeg(0.85f);
+        assertEquals("image/jpeg", encoder.mimeType());
+        BufferedImage decoded = decode(encoder.encodeBase64(img));
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+        /* JPEG is lossy, but a flat area keeps roughly its colour. */
+        int rgb = decoded.getRGB(4, 4);
+        assertTrue(Math.abs(((rgb >> 16) & 0xff) - 200) < 16);
+    }
+
+    @Test
+    public void testSettingsOutOfRange() {
+        for (int level : new int[]{-1, 10}) {
+            try {
+                RasterEncoder.png(level);
+                fail("Accepted deflate level " + level);
+            } catch (IllegalArgumentException expected) {
+                /* Rejected, not clamped. */
+            }
+        }
+        for (float quality : new float[]{-0.1f, 1.1f}) {
+            try {
+                RasterEncoder.jpeg(quality);
+                fail("Accepted JPEG quality " + quality);
+            } catch (IllegalArgumentException expected) {
+                /* Rejected, not clamped. */
+            }
+        }
+    }
+
+    /** Returns an image with a flat red area on the left and a gradient on the right. */
+    private static BufferedImage image() {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y += 1) {
+            for (int x = 0; x < WIDTH; x += 1) {
+                img.setRGB(x, y, x < WIDTH / 2 ? 0xc81e1e : (x * 5) << 8 | y * 7);
+            }
+        }
+        return img;
+    }
+
+    private static BufferedImage decode(byte[] base64) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(base64)));
+    }
+}
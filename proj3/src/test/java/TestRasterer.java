@@ -47,7 +47,27 @@ public class TestRasterer {
         }
     }
 
-    private List<Map<String, Double>> paramsFromFile() throws Exception {
+    @Test
+    public void testOverzoom() {
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        /* A box a thousandth of the map across, on a 256 pixel viewport. */
+        double ullon = MapServer.ROOT_ULLON + 0.4 * width;
+        double ullat = MapServer.ROOT_ULLAT - 0.4 * height;
+        double lrlon = ullon + width / 1000;
+        double lrlat = ullat - height / 1000;
+        RasterPlan capped = new Rasterer().plan(ullon, ullat, lrlon, lrlat, 256);
+        assertEquals(7, capped.getDepth());
+        RasterPlan deep = new Rasterer(10).plan(ullon, ullat, lrlon, lrlat, 256);
+        assertEquals(10, deep.getDepth());
+        assertEquals(409, deep.getMinX());
+        assertEquals(MapServer.ROOT_ULLON + 409 * width / 1024, deep.getUllon(), DOUBLE_THRESHOLD);
+        assertTrue(deep.getUllon() <= ullon && deep.getLrlon() >= lrlon);
+        assertTrue(deep.getUllat() >= ullat && deep.getLrlat() <= lrlat);
+        assertEquals("d10_x409_y" + deep.getMinY() + ".png", deep.renderGrid()[0][0]);
+    }
+
+    static List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
         int lineIdx = 2; // ignore comment lines
@@ -65,7 +85,7 @@ public class TestRasterer {
         return testParams;
     }
 
-    private List<Map<String, Object>> resultsFromFile() throws Exception {
+    static List<Map<String, Object>> resultsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(RESULTS_FILE), Charset.defaultCharset());
         List<Map<String, Object>> expected = new ArrayList<>();
         int lineIdx = 4; // ignore comment lines
@@ -95,7 +115,7 @@ public class TestRasterer {
         return expected;
     }
 
-    private void checkParamsMap(String err, Map<String, Object> expected,
+    static void checkParamsMap(String err, Map<String, Object> expected,
                                             Map<String, Object> actual) {
         for (String key : expected.keySet()) {
             assertTrue(err + "Your results map is missing "
@@ -119,14 +139,14 @@ public class TestRasterer {
     /** Generates an actual/expected message from a base message, an actual map,
      *  and an expected map.
      */
-    private String genDiffErrMsg(String basemsg, Map<String, Object> expected,
+    private static String genDiffErrMsg(String basemsg, Map<String, Object> expected,
                                  Map<String, Object> actual) {
         return basemsg + "Expected: " + mapToString(expected) + ", but got\n"
                        + "Actual  : " + mapToString(actual);
     }
 
     /** Converts a Rasterer input or output map to its string representation. */
-    private String mapToString(Map<String, ?> m) {
+    static String mapToString(Map<String, ?> m) {
         StringJoiner sj = new StringJoiner(", ", "{", "}");
 
         List<String> keys = new ArrayList<>();
@@ -0,0 +1,64 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the raster_params.txt queries on many threads sharing one Rasterer, in random order,
+ * and checks every result against raster_results.txt.
+ */
+public class TestRastererConcurrency {
+    private static final int NUM_ROUNDS = 500;
+    private static final int NUM_THREADS = 8;
+
+    @Test
+    public void testParallelRastersMatchExpected() throws Exception {
+        List<Map<String, Double>> testParams = TestRasterer.paramsFromFile();
+        List<Map<String, Object>> expectedResults = TestRasterer.resultsFromFile();
+        Rasterer rasterer = new Rasterer();
+
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final Random random = new Random(t);
+                futures.add(pool.submit((Callable<Void>) () -> {
+                    for (int round = 0; round < NUM_ROUNDS; round++) {
+                        int i = random.nextInt(testParams.size());
+                        Map<String, Object> actual = rasterer.getMapRaster(testParams.get(i));
+                        TestRasterer.checkParamsMap("Query " + i + " raced with another.\n",
+                                expectedResults.get(i), actual);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPlanMatchesMapRaster() throws Exception {
+        Rasterer rasterer = new Rasterer();
+        for (Map<String, Double> params : TestRasterer.paramsFromFile()) {
+            RasterPlan plan = rasterer.plan(params);
+            Map<String, Object> results = rasterer.getMapRaster(params);
+            assertEquals(results.get("depth"), plan.getDepth());
+            assertEquals(((String[][]) results.get("render_grid")).length, plan.getNumRows());
+            assertEquals(((String[][]) results.get("render_grid"))[0].length, plan.getNumCols());
+            assertEquals(plan, rasterer.plan(params));
+        }
+        assertEquals(RasterPlan.INVALID, rasterer.plan(1.0, 2.0, 3.0, 4.0, 256));
+    }
+}
@@ -0,0 +1,106 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that RoadTileRenderer draws the roads of the tiny graph where they are, leaving out
+ * minor roads at shallow depths, and that TileMosaic falls back to it for missing tiles.
+ */
+public class TestRoadTileRenderer {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /** A square around the tiny graph, which lies in [0.1, 0.6] x [38.1, 38.6]. */
+    private static final double ULLON = 0, ULLAT = 38.7, LRLON = 0.7, LRLAT = 38.0;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private RoadTileRenderer renderer;
+    private int background;
+
+    @Before
+    public void setUp() throws Exception {
+        /* Parse a copy, so the snapshot is written to the temporary folder. */
+        File source = folder.newFile("tiny-clean.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_TINY), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        GraphDB g = new GraphDB(source.getPath());
+        renderer = new RoadTileRenderer(g, ULLON, ULLAT, LRLON, LRLAT);
+        background = renderer.render(0, 0, 0).getRGB(0, 0);
+    }
+
+    @Test
+    public void testRender() {
+        assertEquals(6, renderer.numRoads());
+        BufferedImage root = renderer.render(0, 0, 0);
+        assertEquals(MapServer.TILE_SIZE, root.getWidth());
+        assertEquals(MapServer.TILE_SIZE, root.getHeight());
+        /* C Street is primary, so it shows at depth 0; A Street is residential. */
+        assertTrue(drawnNear(root, 0, 0, 0, 0.5, 38.2));
+        assertFalse(drawnNear(root, 0, 0, 0, 0.15, 38.15));
+
+        /* At depth 3, A Street runs through the tile (1, 6). */
+        assertTrue(drawnNear(renderer.render(3, 1, 6), 3, 1, 6, 0.15, 38.15));
+        assertFalse(drawnNear(renderer.render(3, 1, 5), 3, 1, 5, 0.15, 38.25));
+
+        assertNull(renderer.render(1, 2, 0));
+        assertNull(renderer.render(0, 0, -1));
+        assertEquals("Counting the one in setUp", 4L, renderer.stats().get("rendered"));
+    }
+
+    @Test
+    public void testMosaicFallback() {
+        LruCache<String, BufferedImage> cache = new LruCache<>(Long.MAX_VALUE, img -> 1L);
+        TileMosaic mosaic = new TileMosaic(new TileDirectory(folder.getRoot().getPath()
+                + File.separator), cache, 1, renderer);
+        BufferedImage tile = mosaic.getTile(0, 0, 0);
+        assertNotNull(tile);
+        assertTrue(drawnNear(tile, 0, 0, 0, 0.5, 38.2));
+        assertSame("Rendered tiles are cached", tile, mosaic.getTile(0, 0, 0));
+        /* Deep tiles are rendered at their own depth, not scaled up from a depth 7 one. */
+        BufferedImage deep = mosaic.getTile(9, 365, 365);
+        assertTrue(drawnNear(deep, 9, 365, 365, 0.5, 38.2));
+        BufferedImage expected = renderer.render(9, 365, 365);
+        for (int y = 0; y < expected.getHeight(); y += 1) {
+            for (int x = 0; x < expected.getWidth(); x += 1) {
+                assertEquals(expected.getRGB(x, y), deep.getRGB(x, y));
+            }
+        }
+        assertFalse(cache.containsKey(TileSource.fileName(7, 91, 91)));
+        assertNull(mosaic.getTile(1, 2, 2));
+        assertNull(new TileMosaic(new TileDirectory(folder.getRoot().getPath()
+                + File.separator), cache, 1).getTile(2, 0, 0));
+    }
+
+    /**
+     * Returns whether any pixel within 2 pixels of the given point in the tile at the given
+     * depth and position is not the background.
+     */
+    private boolean drawnNear(BufferedImage tile, int depth, int tileX, int tileY, double lon,
+                              double lat) {
+        double scale = MapServer.TILE_SIZE * (1 << depth);
+        int px = (int) ((lon - ULLON) / (LRLON - ULLON) * scale) - tileX * MapServer.TILE_SIZE;
+        int py = (int) ((ULLAT - lat) / (ULLAT - LRLAT) * scale) - tileY * MapServer.TILE_SIZE;
+        for (int y = Math.max(0, py - 2); y <= Math.min(tile.getHeight() - 1, py + 2); y += 1) {
+            for (int x = Math.max(0, px - 2); x <= Math.min(tile.getWidth() - 1, px + 2);
+                 x += 1) {
+                if (tile.getRGB(x, y) != background) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
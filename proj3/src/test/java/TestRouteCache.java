@@ -0,0 +1,35 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that MapServer finds a route once and reuses it for points that snap to the same
+ * vertices, while other algorithms get routes of their own.
+ */
+public class TestRouteCache {
+    @BeforeClass
+    public static void setUp() {
+        MapServer.initialize();
+    }
+
+    @Test
+    public void testSameSnappedEndpointsReuseTheRoute() {
+        MapServer.RouteKey key = MapServer.getRouteKey(-122.26, 37.87, -122.25, 37.86,
+                Router.Algorithm.ASTAR);
+        /* About a centimetre away, so they snap to the same vertices. */
+        MapServer.RouteKey nearby = MapServer.getRouteKey(-122.2600001, 37.8700001,
+                -122.2500001, 37.8599999, Router.Algorithm.ASTAR);
+        assertEquals(key, nearby);
+        MapServer.FoundRoute found = MapServer.getRoute(key);
+        assertSame(found, MapServer.getRoute(nearby));
+
+        MapServer.RouteKey other = MapServer.getRouteKey(-122.26, 37.87, -122.25, 37.86,
+                Router.Algorithm.BIDIRECTIONAL_ASTAR);
+        assertNotEquals(key, other);
+        assertNotSame(found, MapServer.getRoute(other));
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which parts of a route MapServer.getRoutePolylines keeps for a raster, on the tiny
+ * graph. The raster covers [0.3, 0.5] x [38.2, 38.4] at 1000 pixels per degree, so vertex 22
+ * at (0.2, 38.2) is at pixel (-100, 200).
+ */
+public class TestRoutePolylines {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final int SIZE = 200;
+    private static final RasterPlan PLAN =
+            new RasterPlan(true, 1, 0, 0, 0, 0, 0.3, 38.4, 0.5, 38.2);
+    private static GraphDB graphTiny;
+
+    @Before
+    public void setUp() {
+        if (graphTiny == null) {
+            graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        }
+    }
+
+    @Test
+    public void testRoutePartlyInside() {
+        /* 11 -> 22 and 55 -> 66 lie wholly to the left and above the raster. */
+        List<int[]> polylines = polylines(PLAN, 11L, 22L, 55L, 66L);
+        assertEquals(1, polylines.size());
+        assertPoints(new int[]{-100, 200, 200, -100}, polylines.get(0));
+    }
+
+    @Test
+    public void testRouteOutside() {
+        /* Below the raster, farther than the stroke width. */
+        assertTrue(polylines(PLAN, 11L, 41L).isEmpty());
+        assertTrue(polylines(PLAN, 22L).isEmpty());
+    }
+
+    @Test
+    public void testSegmentCrossingWithoutVertexInside() {
+        List<int[]> polylines = polylines(PLAN, 22L, 46L);
+        assertEquals(1, polylines.size());
+        assertPoints(new int[]{-100, 200, 100, -200}, polylines.get(0));
+    }
+
+    @Test
+    public void testRouteLeavingAndReentering() {
+        /* 55 -> 66 is outside, so the route splits into two polylines. */
+        List<int[]> polylines = polylines(PLAN, 22L, 55L, 66L, 41L);
+        assertEquals(2, polylines.size());
+        assertPoints(new int[]{-100, 200, 200, -100}, polylines.get(0));
+        assertPoints(new int[]{300, -200, 100, 300}, polylines.get(1));
+    }
+
+    @Test
+    public void testMargin() {
+        /* Moving the bottom edge to 38.102 puts 11 -> 41 at about y = 201, within a stroke
+         * width of the raster. */
+        RasterPlan plan = new RasterPlan(true, 1, 0, 0, 0, 0, 0.3, 38.4, 0.5, 38.102);
+        List<int[]> polylines = polylines(plan, 11L, 41L);
+        assertEquals(1, polylines.size());
+        assertEquals(4, polylines.get(0).length);
+        assertTrue(polylines.get(0)[1] > SIZE && polylines.get(0)[1] <= SIZE + 5);
+    }
+
+    /** Checks a polyline against the expected pixels, which the cast to int may truncate by
+     * one. */
+    private static void assertPoints(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i += 1) {
+            assertEquals("Coordinate " + i, expected[i], actual[i], 1);
+        }
+    }
+
+    private static List<int[]> polylines(RasterPlan plan, Long... route) {
+        return MapServer.getRoutePolylines(graphTiny, plan, SIZE, SIZE, Arrays.asList(route));
+    }
+}
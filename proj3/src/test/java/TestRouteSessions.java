@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that RouteSessions keeps a route per client, and expires and evicts sessions.
+ */
+public class TestRouteSessions {
+    /** Estimated bytes of a session with a route of two nodes. */
+    private static final long TWO_NODE_SESSION_BYTES = 256 + 2 * 24;
+    private long now = 0;
+
+    @Test
+    public void testRoutesPerClient() {
+        RouteSessions sessions = new RouteSessions(1000, 1 << 20, () -> now);
+        assertSame(RouteSessions.Route.NONE, sessions.get(null));
+        assertSame(RouteSessions.Route.NONE, sessions.get("unknown"));
+
+        List<Long> a = Arrays.asList(1L, 2L, 3L);
+        List<Long> b = Arrays.asList(4L, 5L);
+        String alice = sessions.set(null, a);
+        String bob = sessions.set("unknown", b);
+        assertNotNull(alice);
+        assertNotEquals(alice, bob);
+        assertNotEquals("unknown", bob);
+        assertEquals(a, sessions.get(alice).nodes());
+        assertEquals(b, sessions.get(bob).nodes());
+
+        long version = sessions.get(alice).version();
+        assertEquals(alice, sessions.set(alice, b));
+        assertEquals(b, sessions.get(alice).nodes());
+        assertTrue("Every route gets a new version", sessions.get(alice).version() > version);
+        assertNotEquals(sessions.get(alice).version(), sessions.get(bob).version());
+
+        sessions.clear(bob);
+        assertSame(RouteSessions.Route.NONE, sessions.get(bob));
+        assertEquals(b, sessions.get(alice).nodes());
+        assertEquals(2, sessions.size());
+    }
+
+    @Test
+    public void testExpiryAndCap() {
+        RouteSessions sessions = new RouteSessions(1000, 3 * TWO_NODE_SESSION_BYTES, () -> now);
+        List<Long> route = Arrays.asList(1L, 2L);
+        String first = sessions.set(null, route);
+        now = 600;
+        String second = sessions.set(null, route);
+        now = 1200;
+        assertEquals("Used within the time to live", route, sessions.get(second).nodes());
+        assertSame("Expired", RouteSessions.Route.NONE, sessions.get(first));
+        assertEquals(1, sessions.size());
+
+        String third = sessions.set(null, route);
+        now = 1300;
+        String fourth = sessions.set(null, route);
+        sessions.get(second);
+        now = 1400;
+        sessions.set(null, route);
+        assertEquals(3, sessions.size());
+        assertSame("Least recently used", RouteSessions.Route.NONE, sessions.get(third));
+        assertEquals(route, sessions.get(second).nodes());
+        assertEquals(route, sessions.get(fourth).nodes());
+        assertEquals(1L, sessions.stats().get("expired"));
+        assertEquals(1L, sessions.stats().get("evicted"));
+    }
+
+    @Test
+    public void testLongRoutesTakeMoreOfTheBudget() {
+        RouteSessions sessions = new RouteSessions(1000, 3 * TWO_NODE_SESSION_BYTES, () -> now);
+        String a = sessions.set(null, Arrays.asList(1L, 2L));
+        String b = sessions.set(null, Arrays.asList(1L, 2L));
+        assertEquals(2, sessions.size());
+        Long[] longRoute = new Long[20];
+        Arrays.fill(longRoute, 7L);
+        String c = sessions.set(null, Arrays.asList(longRoute));
+        assertEquals("Evicted to make room for the long route", 1, sessions.size());
+        assertSame(RouteSessions.Route.NONE, sessions.get(a));
+        assertSame(RouteSessions.Route.NONE, sessions.get(b));
+        assertEquals(20, sessions.get(c).nodes().size());
+        assertEquals(256L + 20 * 24, sessions.stats().get("bytes"));
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every Router.Algorithm finds paths as short as A* does on the path_params.txt
+ * routes and on random routes, and that the paths it returns are made of actual roads.
+ */
+public class TestRouterAlgorithms {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final double EPSILON = 1e-9;
+    private static GraphDB graph;
+    private static List<double[]> queries;
+    private static boolean initialized = false;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graph.setContractionHierarchy(ContractionHierarchy.build(graph));
+        queries = RouterBenchmark.queries();
+        initialized = true;
+    }
+
+    @Test
+    public void testAlgorithmsMatchAStar() {
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            for (double[] q : queries) {
+                List<Long> expected = Router.shortestPath(graph, q[0], q[1], q[2], q[3]);
+                List<Long> actual = Router.shortestPath(graph, q[0], q[1], q[2], q[3],
+                        algorithm);
+                assertEquals(expected.get(0), actual.get(0));
+                assertEquals(expected.get(expected.size() - 1), actual.get(actual.size() - 1));
+                assertEquals(algorithm + " found a longer path", length(expected),
+                        length(actual), EPSILON);
+                assertEquals(Router.routeDirections(graph, actual).isEmpty(),
+                        actual.size() == 1);
+            }
+        }
+    }
+
+    @Test
+    public void testDistanceLowerBound() {
+        Random random = new Random(17);
+        for (int i = 0; i < 100000; i++) {
+            int v = random.nextInt(graph.size());
+            int w = random.nextInt(graph.size());
+            double distance = graph.distanceAt(v, w);
+            double bound = graph.distanceLowerBound(v, w);
+            assertTrue(bound <= distance);
+            assertTrue("Lower bound is too loose", bound >= 0.999 * distance);
+        }
+    }
+
+    @Test
+    public void testLandmarkLowerBound() {
+        Random random = new Random(18);
+        Landmarks landmarks = graph.landmarks();
+        for (int i = 0; i < 200; i++) {
+            int v = random.nextInt(graph.size());
+            int t = random.nextInt(graph.size());
+            SearchWorkspace ws = graph.acquireWorkspace();
+            double distance = length(Router.shortestPath(graph, ws, v, t, Router.Algorithm.ASTAR));
+            graph.releaseWorkspace(ws);
+            assertTrue(landmarks.lowerBound(v, t) <= distance);
+        }
+    }
+
+    @Test
+    public void testSavedHierarchyRoutesTheSame() throws Exception {
+        File file = new File(folder.getRoot(), "berkeley" + ContractionHierarchy.EXTENSION);
+        graph.contractionHierarchy().write(file);
+        ContractionHierarchy loaded = ContractionHierarchy.read(file, graph);
+        assertNotNull(loaded);
+        for (double[] q : queries) {
+            int s = graph.index(graph.closest(q[0], q[1]));
+            int t = graph.index(graph.closest(q[2], q[3]));
+            SearchWorkspace ws = graph.acquireWorkspace();
+            List<Long> expected = graph.contractionHierarchy().shortestPath(ws, s, t);
+            ws.reset();
+            assertEquals(expected, loaded.shortestPath(ws, s, t));
+            graph.releaseWorkspace(ws);
+        }
+    }
+
+    /** Returns the length of a path in miles, checking that consecutive vertices are
+     * joined by a road. */
+    private static double length(List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            int v = graph.index(path.get(i - 1));
+            int w = graph.index(path.get(i));
+            assertTrue("No road between " + path.get(i - 1) + " and " + path.get(i),
+                    graph.edgeBetween(v, w) != -1);
+            length += graph.distanceAt(v, w);
+        }
+        return length;
+    }
+}
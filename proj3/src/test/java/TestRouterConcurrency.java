@@ -0,0 +1,82 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fires many routes in parallel and checks each against the route computed on a single
+ * thread, to make sure concurrent searches do not share state.
+ */
+public class TestRouterConcurrency {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 200;
+    private static final int NUM_ROUNDS = 4;
+    private static final int NUM_THREADS = 8;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testParallelRoutesMatchSequential() throws Exception {
+        Random random = new Random(1234);
+        List<double[]> queries = new ArrayList<>();
+        List<List<Long>> expected = new ArrayList<>();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double[] q = {randomLon(random), randomLat(random),
+                          randomLon(random), randomLat(random)};
+            queries.add(q);
+            expected.add(Router.shortestPath(graph, q[0], q[1], q[2], q[3]));
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int round = 0; round < NUM_ROUNDS; round++) {
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                order.add(i);
+            }
+        }
+        Collections.shuffle(order, random);
+
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int i : order) {
+                final double[] q = queries.get(i);
+                futures.add(pool.submit((Callable<List<Long>>) () ->
+                        Router.shortestPath(graph, q[0], q[1], q[2], q[3])));
+            }
+            for (int k = 0; k < order.size(); k++) {
+                assertEquals("Route " + order.get(k) + " differs when run concurrently",
+                        expected.get(order.get(k)), futures.get(k).get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static double randomLon(Random random) {
+        return MapServer.ROOT_ULLON + random.nextDouble()
+                * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+    }
+
+    private static double randomLat(Random random) {
+        return MapServer.ROOT_LRLAT + random.nextDouble()
+                * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+    }
+}
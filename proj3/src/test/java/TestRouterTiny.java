@@ -2,6 +2,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -63,4 +64,13 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testDirectionsSkipUnknownIds() {
+        List<Long> route = Arrays.asList(22L, 46L, 66L);
+        List<Long> withUnknown = Arrays.asList(12345L, 22L, 46L, 66L);
+        assertEquals(Router.routeDirections(graphTiny, route).size(),
+                Router.routeDirections(graphTiny, withUnknown).size());
+        assertEquals(0, Router.routeDirections(graphTiny, Arrays.asList(12345L, 54321L)).size());
+    }
 }
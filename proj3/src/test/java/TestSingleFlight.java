@@ -0,0 +1,103 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that SingleFlight runs concurrent computations of one key once, and shares their
+ * results and exceptions.
+ */
+public class TestSingleFlight {
+    private static final int NUM_THREADS = 8;
+
+    @Test
+    public void testConcurrentCallsShareOneComputation() throws Exception {
+        SingleFlight<String, Object> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Object result = new Object();
+        Object[] results = new Object[NUM_THREADS];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; i += 1) {
+            int id = i;
+            threads.add(new Thread(() -> results[id] = flights.run("key", () -> {
+                computations.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return result;
+            })));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        /* Let the computation finish once every other thread is waiting for it. */
+        while (flights.coalesced() < NUM_THREADS - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, computations.get());
+        for (Object r : results) {
+            assertSame(result, r);
+        }
+        assertEquals(NUM_THREADS - 1, flights.coalesced());
+
+        /* The flight is over, so the next call computes again. */
+        assertEquals("again", flights.run("key", () -> "again"));
+        assertEquals(0, flights.stats().get("in_flight"));
+    }
+
+    @Test
+    public void testExceptionsAreShared() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("no route");
+        AtomicReference<Exception> leaderCaught = new AtomicReference<>();
+        AtomicReference<Exception> followerCaught = new AtomicReference<>();
+        Thread leader = new Thread(() -> {
+            try {
+                flights.run(1, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw failure;
+                });
+            } catch (IllegalStateException e) {
+                leaderCaught.set(e);
+            }
+        });
+        leader.start();
+        while (flights.stats().get("in_flight").equals(0)) {
+            Thread.sleep(1);
+        }
+        Thread follower = new Thread(() -> {
+            try {
+                flights.run(1, () -> "not computed");
+            } catch (IllegalStateException e) {
+                followerCaught.set(e);
+            }
+        });
+        follower.start();
+        while (flights.coalesced() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        leader.join();
+        follower.join();
+        assertSame(failure, leaderCaught.get());
+        assertSame("The follower gets the leader's exception", failure, followerCaught.get());
+    }
+}
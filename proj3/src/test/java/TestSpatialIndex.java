@@ -0,0 +1,103 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks GraphDB's spatial queries against brute force scans over all vertices.
+ */
+public class TestSpatialIndex {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 500;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testClosestMatchesBruteForce() {
+        Random random = new Random(7);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = randomLon(random, 0.2);
+            double lat = randomLat(random, 0.2);
+            long expected = 0;
+            double best = Double.MAX_VALUE;
+            for (long id : graph.vertices()) {
+                double d = GraphDB.distance(graph.lon(id), graph.lat(id), lon, lat);
+                if (d < best) {
+                    best = d;
+                    expected = id;
+                }
+            }
+            assertEquals(expected, graph.closest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testKNearestMatchesBruteForce() {
+        Random random = new Random(8);
+        for (int i = 0; i < NUM_QUERIES / 10; i++) {
+            double lon = randomLon(random, 0.1);
+            double lat = randomLat(random, 0.1);
+            int k = 1 + random.nextInt(20);
+            assertEquals(bruteForceNearest(lon, lat, k), graph.closest(lon, lat, k));
+        }
+    }
+
+    @Test
+    public void testWithinRadiusMatchesBruteForce() {
+        Random random = new Random(9);
+        for (int i = 0; i < NUM_QUERIES / 10; i++) {
+            double lon = randomLon(random, 0.1);
+            double lat = randomLat(random, 0.1);
+            double miles = random.nextDouble() * 0.5;
+            List<Long> expected = new ArrayList<>();
+            for (long id : bruteForceNearest(lon, lat, Integer.MAX_VALUE)) {
+                if (GraphDB.distance(graph.lon(id), graph.lat(id), lon, lat) <= miles) {
+                    expected.add(id);
+                }
+            }
+            assertEquals(expected, graph.withinRadius(lon, lat, miles));
+        }
+    }
+
+    /** Returns the ids of the k closest vertices by a linear scan, nearest first and ties
+     * broken in vertex order. */
+    private static List<Long> bruteForceNearest(double lon, double lat, int k) {
+        List<Long> ids = new ArrayList<>();
+        Map<Long, Double> dist = new HashMap<>();
+        for (long id : graph.vertices()) {
+            ids.add(id);
+            dist.put(id, GraphDB.distance(graph.lon(id), graph.lat(id), lon, lat));
+        }
+        ids.sort((v, w) -> Double.compare(dist.get(v), dist.get(w)));
+        return new ArrayList<>(ids.subList(0, Math.min(k, ids.size())));
+    }
+
+    /** Returns a random longitude in the map bounds, widened by the given fraction on
+     * each side. */
+    private static double randomLon(Random random, double margin) {
+        double span = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        return MapServer.ROOT_ULLON - margin * span
+                + random.nextDouble() * (1 + 2 * margin) * span;
+    }
+
+    private static double randomLat(Random random, double margin) {
+        double span = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        return MapServer.ROOT_LRLAT - margin * span
+                + random.nextDouble() * (1 + 2 * margin) * span;
+    }
+}
@@ -0,0 +1,156 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a TileArchive returns the same bytes as the tile files it was packed from, and
+ * that open refuses archives that are stale or malformed.
+ */
+public class TestTileArchive {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPackAndRead() throws Exception {
+        File tiles = folder.newFolder("tiles");
+        Random random = new Random(7);
+        int[][] ids = {{0, 0, 0}, {1, 1, 0}, {1, 0, 1}, {7, 127, 126}, {7, 3, 100}};
+        for (int[] id : ids) {
+            byte[] bytes = new byte[1 + random.nextInt(5000)];
+            random.nextBytes(bytes);
+            Files.write(new File(tiles, TileSource.fileName(id[0], id[1], id[2])).toPath(),
+                    bytes);
+        }
+        Files.write(new File(tiles, "README.txt").toPath(), new byte[]{1, 2, 3});
+
+        File archiveFile = folder.newFile("tiles" + TileArchive.EXTENSION);
+        assertEquals("Only tile files are packed", ids.length,
+                TileArchive.pack(tiles, archiveFile));
+        TileArchive archive = TileArchive.open(archiveFile, tiles);
+        assertNotNull(archive);
+        assertEquals(ids.length, archive.size());
+
+        TileSource directory = new TileDirectory(tiles.getPath() + File.separator);
+        for (int[] id : ids) {
+            ByteBuffer expected = directory.read(id[0], id[1], id[2]);
+            ByteBuffer actual = archive.read(id[0], id[1], id[2]);
+            assertNotNull(actual);
+            assertEquals(expected, actual);
+            /* Each read is an independent view. */
+            byte[] bytes = new byte[actual.remaining()];
+            archive.read(id[0], id[1], id[2]).get(bytes);
+            assertArrayEquals(expected.array(), bytes);
+        }
+        assertNull(archive.read(1, 1, 1));
+        assertNull(archive.read(7, 126, 127));
+        assertNull(directory.read(1, 1, 1));
+    }
+
+    @Test
+    public void testOutOfRangeTiles() throws Exception {
+        File tiles = folder.newFolder("tiles");
+        Files.write(new File(tiles, TileSource.fileName(1, 1, 0)).toPath(), new byte[]{1});
+        /* Would share the key of d1_x1_y0 if it were packed. */
+        Files.write(new File(tiles, TileSource.fileName(1, 0, 1 << 24)).toPath(), new byte[]{2});
+        Files.write(new File(tiles, "d1_x0_y99999999999.png").toPath(), new byte[]{3});
+
+        File archiveFile = folder.newFile("tiles" + TileArchive.EXTENSION);
+        assertEquals(1, TileArchive.pack(tiles, archiveFile));
+        TileArchive archive = TileArchive.open(archiveFile, tiles);
+        assertNotNull(archive.read(1, 1, 0));
+        assertNull(archive.read(1, 0, 1 << 24));
+        assertNull(archive.read(1, 2, 0));
+        assertNull(archive.read(1, -1, 0));
+        assertNull(archive.read(-1, 0, 0));
+    }
+
+    @Test
+    public void testOpenRejectsOtherFiles() throws Exception {
+        File tiles = folder.newFolder("tiles");
+        assertNull(TileArchive.open(new File(folder.getRoot(), "missing.tiles"), tiles));
+        File other = folder.newFile("other.tiles");
+        Files.write(other.toPath(), new byte[64]);
+        assertNull(TileArchive.open(other, tiles));
+    }
+
+    @Test
+    public void testOpenRejectsStaleArchives() throws Exception {
+        File tiles = folder.newFolder("tiles");
+        File tile = new File(tiles, TileSource.fileName(1, 0, 0));
+        Files.write(tile.toPath(), new byte[]{1});
+        assertTrue(tile.setLastModified(1000000000000L));
+        File archiveFile = folder.newFile("tiles" + TileArchive.EXTENSION);
+        TileArchive.pack(tiles, archiveFile);
+        assertNotNull(TileArchive.open(archiveFile, tiles));
+
+        /* A changed tile. */
+        assertTrue(tile.setLastModified(1000000060000L));
+        assertNull(TileArchive.open(archiveFile, tiles));
+        TileArchive.pack(tiles, archiveFile);
+        assertNotNull(TileArchive.open(archiveFile, tiles));
+
+        /* A new tile with an older time, as a copy that keeps times would give. */
+        File added = new File(tiles, TileSource.fileName(1, 1, 0));
+        Files.write(added.toPath(), new byte[]{2});
+        assertTrue(added.setLastModified(900000000000L));
+        assertNull(TileArchive.open(archiveFile, tiles));
+
+        /* Without the folder, the archive is all there is. */
+        assertNotNull(TileArchive.open(archiveFile, new File(folder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void testOpenRejectsBadEntries() throws Exception {
+        File tiles = folder.newFolder("tiles");
+        Files.write(new File(tiles, TileSource.fileName(1, 0, 0)).toPath(), new byte[]{1, 2});
+        Files.write(new File(tiles, TileSource.fileName(1, 1, 0)).toPath(), new byte[]{3});
+        File archiveFile = folder.newFile("tiles" + TileArchive.EXTENSION);
+        TileArchive.pack(tiles, archiveFile);
+        byte[] good = Files.readAllBytes(archiveFile.toPath());
+        int header = 24;
+        int entry = 24;
+
+        /* Offsets past the end, into the index, or too large for an int; lengths past the end
+         * or negative; keys out of order; and a truncated file. */
+        long[][] offsets = {{header + 8, 1L << 40}, {header + 8, 0}, {header + 8, 8},
+            {header + entry + 8, (1L << 32) + good.length - 1}};
+        for (long[] change : offsets) {
+            byte[] bytes = good.clone();
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                    .putLong((int) change[0], change[1]);
+            assertNull(open(bytes, tiles));
+        }
+        for (int length : new int[]{good.length, -1, Integer.MAX_VALUE}) {
+            byte[] bytes = good.clone();
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(header + 16, length);
+            assertNull(open(bytes, tiles));
+        }
+        byte[] swapped = good.clone();
+        ByteBuffer.wrap(swapped).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(header, ByteBuffer.wrap(good).order(ByteOrder.LITTLE_ENDIAN)
+                        .getLong(header + entry));
+        assertNull(open(swapped, tiles));
+        assertNull(open(Arrays.copyOf(good, good.length - 1), tiles));
+        assertNotNull(open(good, tiles));
+    }
+
+    /** Writes bytes to an archive file and opens it as an archive of tiles. */
+    private TileArchive open(byte[] bytes, File tiles) throws Exception {
+        File file = new File(folder.getRoot(), "changed" + TileArchive.EXTENSION);
+        Files.write(file.toPath(), bytes);
+        return TileArchive.open(file, tiles);
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Spark;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Starts MapServer on a free port and checks the responses of /tiles: the caching headers,
+ * revalidation with If-None-Match, and 404 for tiles outside the map.
+ */
+public class TestTileEndpoint {
+    private static String server;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            Spark.port(socket.getLocalPort());
+            server = "http://localhost:" + socket.getLocalPort();
+        }
+        MapServer.main(new String[0]);
+        Spark.awaitInitialization();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        Spark.stop();
+    }
+
+    @Test
+    public void testTileAndRevalidation() throws IOException {
+        /* A tile image at depth 1, and one cut out of a depth 7 tile and scaled up. */
+        for (String path : new String[]{"/tiles/1/0/1.png", "/tiles/9/10/20.png"}) {
+            HttpURLConnection first = open(path, null);
+            assertEquals(path, 200, first.getResponseCode());
+            assertEquals("image/png", first.getContentType());
+            assertTrue(first.getHeaderField("Cache-Control").contains("max-age="));
+            String etag = first.getHeaderField("ETag");
+            assertNotNull(etag);
+            byte[] png = readAll(first);
+            assertEquals(png.length, first.getContentLength());
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(MapServer.TILE_SIZE, img.getWidth());
+
+            HttpURLConnection again = open(path, null);
+            assertEquals("The ETag follows the bytes", etag, again.getHeaderField("ETag"));
+            readAll(again);
+
+            long misses = tileResponseCacheMisses();
+            HttpURLConnection revalidate = open(path, etag);
+            assertEquals(304, revalidate.getResponseCode());
+            assertEquals("Revalidating encodes nothing", misses, tileResponseCacheMisses());
+            assertEquals(etag, revalidate.getHeaderField("ETag"));
+            assertEquals(0, readAll(revalidate).length);
+
+            HttpURLConnection changed = open(path, "\"0-0\"");
+            assertEquals(200, changed.getResponseCode());
+            readAll(changed);
+        }
+    }
+
+    @Test
+    public void testMissingTiles() throws IOException {
+        String[] paths = {"/tiles/1/0/16777216.png", "/tiles/1/2/0.png", "/tiles/1/0/2.png",
+            "/tiles/-1/0/0.png", "/tiles/40/0/0.png", "/tiles/1/0/x.png", "/tiles/1/0/1.jpg"};
+        for (String path : paths) {
+            HttpURLConnection connection = open(path, null);
+            assertEquals(path, 404, connection.getResponseCode());
+            readAll(connection);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long tileResponseCacheMisses() {
+        Map<String, Object> cache =
+                (Map<String, Object>) MapServer.getStats().get("tile_response_cache");
+        return ((Number) cache.get("misses")).longValue();
+    }
+
+    private static HttpURLConnection open(String path, String ifNoneMatch) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(server + path).openConnection();
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return connection;
+    }
+
+    private static byte[] readAll(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream()
+                : connection.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            for (int n; in != null && (n = in.read(buffer)) >= 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that TileMosaic stitches tiles exactly as drawing them with Graphics.drawImage does,
+ * whether it copies them on one thread or many. The tiles are written to a temporary folder.
+ */
+public class TestTileMosaic {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMatchesDrawImage() throws Exception {
+        /* A depth 2 plan with 3 columns and 2 rows of tiles. */
+        RasterPlan plan = new RasterPlan(true, 2, 1, 2, 3, 3, 0, 0, 0, 0);
+        String[][] renderGrid = plan.renderGrid();
+        Random random = new Random(42);
+        BufferedImage expected = new BufferedImage(3 * MapServer.TILE_SIZE,
+                2 * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics expectedGraphic = expected.getGraphics();
+        for (int r = 0; r < renderGrid.length; r += 1) {
+            for (int c = 0; c < renderGrid[0].length; c += 1) {
+                /* Saved with 3 bytes per pixel, as the real tiles are. */
+                BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                        BufferedImage.TYPE_3BYTE_BGR);
+                Graphics g = tile.getGraphics();
+                for (int i = 0; i < 20; i += 1) {
+                    g.setColor(new Color(random.nextInt(1 << 24)));
+                    g.fillRect(random.nextInt(256), random.nextInt(256), 40, 40);
+                }
+                g.dispose();
+                File file = new File(folder.getRoot(), renderGrid[r][c]);
+                ImageIO.write(tile, "png", file);
+                expectedGraphic.drawImage(ImageIO.read(file), c * MapServer.TILE_SIZE,
+                        r * MapServer.TILE_SIZE, null);
+            }
+        }
+        expectedGraphic.dispose();
+
+        String imgRoot = folder.getRoot().getPath() + File.separator;
+        for (int threads : new int[]{1, 4}) {
+            LruCache<String, BufferedImage> cache = new LruCache<>(Long.MAX_VALUE, img -> 1L);
+            TileMosaic mosaic = new TileMosaic(new TileDirectory(imgRoot), cache, threads);
+            for (int round = 0; round < 2; round += 1) {
+                BufferedImage actual = mosaic.draw(plan);
+                assertEquals(expected.getWidth(), actual.getWidth());
+                assertEquals(expected.getHeight(), actual.getHeight());
+                for (int y = 0; y < expected.getHeight(); y += 1) {
+                    for (int x = 0; x < expected.getWidth(); x += 1) {
+                        assertEquals(threads + " threads, pixel " + x + ", " + y,
+                                expected.getRGB(x, y), actual.getRGB(x, y));
+                    }
+                }
+            }
+            assertEquals("Tiles are decoded once", 6, cache.misses());
+        }
+    }
+
+    @Test
+    public void testOverzoom() throws Exception {
+        /* A depth 7 tile with red, green, blue and white quadrants. */
+        int half = MapServer.TILE_SIZE / 2;
+        BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = tile.getGraphics();
+        Color[] quadrants = {Color.RED, Color.GREEN, Color.BLUE, Color.WHITE};
+        for (int i = 0; i < 4; i += 1) {
+            g.setColor(quadrants[i]);
+            g.fillRect((i % 2) * half, (i / 2) * half, half, half);
+        }
+        g.dispose();
+        ImageIO.write(tile, "png", new File(folder.getRoot(), TileSource.fileName(7, 0, 0)));
+
+        LruCache<String, BufferedImage> cache = new LruCache<>(Long.MAX_VALUE, img -> 1L);
+        TileMosaic mosaic = new TileMosaic(
+                new TileDirectory(folder.getRoot().getPath() + File.separator), cache, 1);
+        for (int i = 0; i < 4; i += 1) {
+            BufferedImage quadrant = mosaic.getTile(8, i % 2, i / 2);
+            assertEquals(MapServer.TILE_SIZE, quadrant.getWidth());
+            assertEquals(quadrants[i].getRGB(), quadrant.getRGB(half, half));
+        }
+        assertEquals(Color.WHITE.getRGB(), mosaic.getTile(10, 5, 6).getRGB(10, 200));
+        assertEquals("Overzoomed tiles are cached too", 6, cache.size());
+        assertEquals(null, mosaic.getTile(8, 2, 0));
+    }
+}
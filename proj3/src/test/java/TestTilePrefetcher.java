@@ -0,0 +1,128 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which tiles TilePrefetcher loads around a raster, that rasters arriving together
+ * share the queue, and that it counts the prefetched tiles rasters go on to use.
+ */
+public class TestTilePrefetcher {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNeighbors() {
+        TilePrefetcher prefetcher = new TilePrefetcher(null, 7, 16);
+        /* The 2x2 block of tiles in the corner of depth 2. */
+        List<int[]> tiles = prefetcher.neighbors(new RasterPlan(true, 2, 0, 0, 1, 1, 0, 0, 0, 0));
+        /* 5 ring tiles on the map, 1 parent and 16 children. */
+        assertEquals(22, tiles.size());
+        assertArrayEquals("Ring first", new int[]{2, 2, 0}, tiles.get(0));
+        assertArrayEquals("Then the parent", new int[]{1, 0, 0}, tiles.get(5));
+        assertArrayEquals("Then the children", new int[]{3, 3, 3}, tiles.get(21));
+        assertEquals("No children below the deepest depth", 6,
+                new TilePrefetcher(null, 2, 16)
+                        .neighbors(new RasterPlan(true, 2, 0, 0, 1, 1, 0, 0, 0, 0)).size());
+    }
+
+    @Test
+    public void testPrefetchAndHits() throws Exception {
+        for (int depth = 0; depth <= 2; depth += 1) {
+            for (int x = 0; x < 1 << depth; x += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE,
+                            MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+                    ImageIO.write(tile, "png",
+                            new File(folder.getRoot(), TileSource.fileName(depth, x, y)));
+                }
+            }
+        }
+        LruCache<String, BufferedImage> cache = new LruCache<>(Long.MAX_VALUE, img -> 1L);
+        TileMosaic mosaic = new TileMosaic(
+                new TileDirectory(folder.getRoot().getPath() + File.separator), cache, 1);
+        TilePrefetcher prefetcher = new TilePrefetcher(mosaic, 2, 64);
+
+        RasterPlan plan = new RasterPlan(true, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+        mosaic.draw(plan);
+        prefetcher.prefetch(plan);
+        assertTrue(prefetcher.awaitIdle(10000));
+        /* The other 3 tiles of depth 1, the root and the 4 children of (1, 0, 0). */
+        assertEquals(1 + 3 + 1 + 4, cache.size());
+        assertTrue(cache.containsKey(TileSource.fileName(1, 1, 1)));
+        assertTrue(cache.containsKey(TileSource.fileName(2, 1, 1)));
+        assertFalse(cache.containsKey(TileSource.fileName(2, 2, 2)));
+        assertEquals(8L, prefetcher.stats().get("loaded"));
+
+        /* Pan right: the tile was prefetched, then zoom out to the root. */
+        mosaic.draw(new RasterPlan(true, 1, 1, 0, 1, 0, 0, 0, 0, 0));
+        mosaic.draw(new RasterPlan(true, 0, 0, 0, 0, 0, 0, 0, 0, 0));
+        mosaic.draw(new RasterPlan(true, 0, 0, 0, 0, 0, 0, 0, 0, 0));
+        assertEquals("Each prefetched tile counts once", 2L, prefetcher.stats().get("hits"));
+        assertEquals(0.25, (double) prefetcher.stats().get("hit_rate"), 1e-9);
+    }
+
+    @Test
+    public void testInterleavedPlansKeepQueuedTiles() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB), "png", png);
+        CountDownLatch decoding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        /* Every tile has the same image; the first read holds up the prefetcher's thread. */
+        TileSource source = new TileSource() {
+            @Override
+            public ByteBuffer read(int depth, int x, int y) {
+                decoding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ByteBuffer.wrap(png.toByteArray());
+            }
+
+            @Override
+            public boolean contains(int depth, int x, int y) {
+                return true;
+            }
+        };
+        LruCache<String, BufferedImage> cache = new LruCache<>(Long.MAX_VALUE, img -> 1L);
+        TilePrefetcher prefetcher =
+                new TilePrefetcher(new TileMosaic(source, cache, 1), 3, 12);
+
+        /* One user's raster of tile (2, 0, 0) has 8 neighbors. The thread takes the first,
+         * (2, 1, 0), and the other 7 stay queued while it decodes. */
+        prefetcher.prefetch(new RasterPlan(true, 2, 0, 0, 0, 0, 0, 0, 0, 0));
+        assertTrue(decoding.await(10, TimeUnit.SECONDS));
+        /* Another user's raster of tile (2, 3, 3) queues 8 more, and only the 3 oldest of the
+         * first raster's tiles are cancelled to make room. */
+        prefetcher.prefetch(new RasterPlan(true, 2, 3, 3, 3, 3, 0, 0, 0, 0));
+        release.countDown();
+        assertTrue(prefetcher.awaitIdle(10000));
+
+        assertEquals(3L, prefetcher.stats().get("cancelled"));
+        assertEquals(0L, prefetcher.stats().get("dropped"));
+        assertEquals(1L + 4 + 8, prefetcher.stats().get("loaded"));
+        assertTrue(cache.containsKey(TileSource.fileName(2, 1, 0)));
+        for (int[] tile : new int[][]{{2, 0, 1}, {2, 1, 1}, {1, 0, 0}}) {
+            assertFalse(cache.containsKey(TileSource.fileName(tile[0], tile[1], tile[2])));
+        }
+        for (int[] tile : new int[][]{{3, 0, 0}, {3, 1, 1}, {2, 2, 3}, {1, 1, 1}, {3, 7, 7}}) {
+            assertTrue(cache.containsKey(TileSource.fileName(tile[0], tile[1], tile[2])));
+        }
+    }
+}